@@ -0,0 +1,550 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Assembles a Java class file, and defines the class. Only as much of the
+ * class file format is supported as the processor needs to translate hot
+ * basic blocks into bytecode: a constant pool, methods with code and an
+ * exception table, and branches to labels.
+ *
+ * <p>
+ * Classes are written in class file version 49, which the JVM verifies by
+ * type inference, so the assembler does not have to compute stack map
+ * frames.
+ *
+ * <p>
+ * All assembled classes are defined by one class loader. Nachos does not
+ * allow class loaders to be created once the security manager is enabled, so
+ * <tt>createLoader()</tt> must be called before that.
+ */
+final class ClassAssembler {
+    /**
+     * Allocate a new class assembler.
+     *
+     * @param	superName	the internal name of the superclass, such as
+     *				<tt>java/lang/Object</tt>.
+     */
+    ClassAssembler(String superName) {
+	name = newClassName();
+	thisClass = classConstant(name);
+	superClass = classConstant(superName);
+    }
+
+    /**
+     * Create the class loader that defines assembled classes. Must be called
+     * before the security manager is enabled.
+     */
+    static void createLoader() {
+	Lib.assertTrue(loader == null);
+
+	loader = new Loader(ClassAssembler.class.getClassLoader());
+    }
+
+    /**
+     * Test whether assembled classes can be defined, because
+     * <tt>createLoader()</tt> was called.
+     *
+     * @return	<tt>true</tt> if there is a class loader.
+     */
+    static boolean hasLoader() {
+	return loader != null;
+    }
+
+    private static synchronized String newClassName() {
+	return "nachos/machine/jit/Block" + (numClasses++);
+    }
+
+    /**
+     * Start a new method. The code of the method is written through the
+     * returned object.
+     *
+     * @param	access		the access flags of the method.
+     * @param	name		the name of the method.
+     * @param	descriptor	the method descriptor.
+     * @param	maxStack	the maximum depth of the operand stack.
+     * @param	maxLocals	the number of local variable slots, including
+     *				<tt>this</tt> and the arguments.
+     * @return	the code of the new method.
+     */
+    Code method(int access, String name, String descriptor,
+		int maxStack, int maxLocals) {
+	Code code = new Code(access, utf8Constant(name),
+			     utf8Constant(descriptor), maxStack, maxLocals);
+	methods.add(code);
+	return code;
+    }
+
+    /**
+     * Define the assembled class.
+     *
+     * @return	the new class.
+     */
+    Class<?> define() {
+	byte[] bytes = toByteArray();
+
+	return loader.define(name.replace('/', '.'), bytes);
+    }
+
+    private byte[] toByteArray() {
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	DataOutputStream out = new DataOutputStream(bytes);
+
+	int codeAttribute = utf8Constant("Code");
+
+	try {
+	    out.writeInt(0xCAFEBABE);
+	    out.writeShort(0);
+	    out.writeShort(49);
+
+	    out.writeShort(constantCount);
+	    out.write(constants.toByteArray());
+
+	    out.writeShort(Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL |
+			   Opcodes.ACC_SUPER);
+	    out.writeShort(thisClass);
+	    out.writeShort(superClass);
+	    out.writeShort(0);		// interfaces
+	    out.writeShort(0);		// fields
+
+	    out.writeShort(methods.size());
+	    for (Code code : methods)
+		code.write(out, codeAttribute);
+
+	    out.writeShort(0);		// attributes
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached();
+	}
+
+	return bytes.toByteArray();
+    }
+
+    private int utf8Constant(String value) {
+	Integer index = constantIndex.get("U" + value);
+	if (index != null)
+	    return index.intValue();
+
+	try {
+	    constantOut.writeByte(1);
+	    constantOut.writeUTF(value);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached();
+	}
+	return addConstant("U" + value, 1);
+    }
+
+    private int classConstant(String name) {
+	Integer index = constantIndex.get("C" + name);
+	if (index != null)
+	    return index.intValue();
+
+	int nameIndex = utf8Constant(name);
+	try {
+	    constantOut.writeByte(7);
+	    constantOut.writeShort(nameIndex);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached();
+	}
+	return addConstant("C" + name, 1);
+    }
+
+    private int memberConstant(int tag, String owner, String name,
+			       String descriptor) {
+	String key = tag + owner + "." + name + ":" + descriptor;
+	Integer index = constantIndex.get(key);
+	if (index != null)
+	    return index.intValue();
+
+	int ownerIndex = classConstant(owner);
+	int nameIndex = utf8Constant(name);
+	int descriptorIndex = utf8Constant(descriptor);
+
+	String nameAndTypeKey = "N" + name + ":" + descriptor;
+	Integer nameAndType = constantIndex.get(nameAndTypeKey);
+	if (nameAndType == null) {
+	    writeConstant(12, (nameIndex << 16) | descriptorIndex);
+	    nameAndType = Integer.valueOf(addConstant(nameAndTypeKey, 1));
+	}
+
+	writeConstant(tag, (ownerIndex << 16) | nameAndType.intValue());
+	return addConstant(key, 1);
+    }
+
+    private int intConstant(int value) {
+	Integer index = constantIndex.get("I" + value);
+	if (index != null)
+	    return index.intValue();
+
+	writeConstant(3, value);
+	return addConstant("I" + value, 1);
+    }
+
+    private int longConstant(long value) {
+	Integer index = constantIndex.get("J" + value);
+	if (index != null)
+	    return index.intValue();
+
+	writeConstant(5, (int) (value >> 32));
+	try {
+	    constantOut.writeInt((int) value);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached();
+	}
+	// long constants take two entries
+	return addConstant("J" + value, 2);
+    }
+
+    private void writeConstant(int tag, int value) {
+	try {
+	    constantOut.writeByte(tag);
+	    constantOut.writeInt(value);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached();
+	}
+    }
+
+    private int addConstant(String key, int entries) {
+	int index = constantCount;
+	constantCount += entries;
+	Lib.assertTrue(constantCount <= 0xFFFF);
+
+	constantIndex.put(key, Integer.valueOf(index));
+	return index;
+    }
+
+    /**
+     * A position in the code of a method, which branches and exception
+     * handlers can refer to before it is marked. Branches to a label are
+     * patched when it is marked.
+     */
+    static final class Label {
+	private int position = -1;
+	private ArrayList<Integer> branches = new ArrayList<Integer>();
+    }
+
+    /**
+     * The code of one method. Instructions are appended one at a time.
+     */
+    final class Code {
+	private Code(int access, int nameIndex, int descriptorIndex,
+		     int maxStack, int maxLocals) {
+	    this.access = access;
+	    this.nameIndex = nameIndex;
+	    this.descriptorIndex = descriptorIndex;
+	    this.maxStack = maxStack;
+	    this.maxLocals = maxLocals;
+	}
+
+	/**
+	 * Append an instruction that has no operands.
+	 *
+	 * @param	opcode	the opcode of the instruction.
+	 */
+	void op(int opcode) {
+	    emit(opcode);
+	}
+
+	/**
+	 * Append an instruction that pushes an <tt>int</tt> constant, using
+	 * the shortest form.
+	 *
+	 * @param	value	the constant.
+	 */
+	void iconst(int value) {
+	    if (value >= -1 && value <= 5) {
+		emit(Opcodes.ICONST_0 + value);
+	    }
+	    else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+		emit(Opcodes.BIPUSH);
+		emit(value);
+	    }
+	    else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+		emit(Opcodes.SIPUSH);
+		emit16(value);
+	    }
+	    else {
+		int index = intConstant(value);
+		if (index <= 0xFF) {
+		    emit(Opcodes.LDC);
+		    emit(index);
+		}
+		else {
+		    emit(Opcodes.LDC_W);
+		    emit16(index);
+		}
+	    }
+	}
+
+	/**
+	 * Append an instruction that pushes a <tt>long</tt> constant.
+	 *
+	 * @param	value	the constant.
+	 */
+	void lconst(long value) {
+	    if (value == 0 || value == 1) {
+		emit(Opcodes.LCONST_0 + (int) value);
+	    }
+	    else {
+		emit(Opcodes.LDC2_W);
+		emit16(longConstant(value));
+	    }
+	}
+
+	/**
+	 * Append an instruction that loads or stores a local variable.
+	 *
+	 * @param	opcode	one of <tt>ILOAD</tt>, <tt>ALOAD</tt>,
+	 *			<tt>ISTORE</tt> or <tt>ASTORE</tt>.
+	 * @param	local	the local variable slot.
+	 */
+	void local(int opcode, int local) {
+	    Lib.assertTrue(local >= 0 && local <= 0xFF);
+
+	    emit(opcode);
+	    emit(local);
+	}
+
+	/**
+	 * Append an <tt>iinc</tt> instruction.
+	 *
+	 * @param	local	the local variable slot.
+	 * @param	delta	the amount to add, a signed byte.
+	 */
+	void iinc(int local, int delta) {
+	    Lib.assertTrue(local >= 0 && local <= 0xFF &&
+			   delta >= Byte.MIN_VALUE && delta <= Byte.MAX_VALUE);
+
+	    emit(Opcodes.IINC);
+	    emit(local);
+	    emit(delta);
+	}
+
+	/**
+	 * Append an instruction that refers to a field.
+	 *
+	 * @param	opcode		<tt>GETFIELD</tt> or <tt>PUTFIELD</tt>.
+	 * @param	owner		the internal name of the class declaring
+	 *				the field.
+	 * @param	name		the name of the field.
+	 * @param	descriptor	the type descriptor of the field.
+	 */
+	void field(int opcode, String owner, String name, String descriptor) {
+	    emit(opcode);
+	    emit16(memberConstant(9, owner, name, descriptor));
+	}
+
+	/**
+	 * Append an instruction that invokes a method of a class.
+	 *
+	 * @param	opcode		<tt>INVOKEVIRTUAL</tt> or
+	 *				<tt>INVOKESPECIAL</tt>.
+	 * @param	owner		the internal name of the class declaring
+	 *				the method.
+	 * @param	name		the name of the method.
+	 * @param	descriptor	the method descriptor.
+	 */
+	void invoke(int opcode, String owner, String name, String descriptor) {
+	    emit(opcode);
+	    emit16(memberConstant(10, owner, name, descriptor));
+	}
+
+	/**
+	 * Append a branch to a label.
+	 *
+	 * @param	opcode	the opcode of the branch, such as <tt>GOTO</tt>
+	 *			or <tt>IF_ICMPNE</tt>.
+	 * @param	label	the branch target.
+	 */
+	void jump(int opcode, Label label) {
+	    int branch = size;
+	    emit(opcode);
+	    emit16(0);
+
+	    if (label.position != -1)
+		patch(branch, label);
+	    else
+		label.branches.add(Integer.valueOf(branch));
+	}
+
+	/**
+	 * Mark the current position in the code with a label.
+	 *
+	 * @param	label	the label to mark, which must not have been
+	 *			marked before.
+	 */
+	void mark(Label label) {
+	    Lib.assertTrue(label.position == -1);
+
+	    label.position = size;
+	    for (Integer branch : label.branches)
+		patch(branch.intValue(), label);
+	    label.branches = null;
+	}
+
+	/**
+	 * Add an exception handler that catches anything thrown by the code
+	 * between two labels.
+	 *
+	 * @param	start	the start of the protected code.
+	 * @param	end	the end of the protected code, exclusive.
+	 * @param	handler	the start of the handler.
+	 */
+	void handler(Label start, Label end, Label handler) {
+	    handlers.add(new Label[] { start, end, handler });
+	}
+
+	private void write(DataOutputStream out, int codeAttribute)
+	    throws IOException {
+	    Lib.assertTrue(size < 0x8000);
+
+	    for (Label[] handler : handlers)
+		Lib.assertTrue(handler[0].position != -1 &&
+			       handler[1].position != -1 &&
+			       handler[2].position != -1);
+
+	    out.writeShort(access);
+	    out.writeShort(nameIndex);
+	    out.writeShort(descriptorIndex);
+	    out.writeShort(1);
+
+	    out.writeShort(codeAttribute);
+	    out.writeInt(12 + size + handlers.size()*8);
+	    out.writeShort(maxStack);
+	    out.writeShort(maxLocals);
+	    out.writeInt(size);
+	    out.write(code, 0, size);
+
+	    out.writeShort(handlers.size());
+	    for (Label[] handler : handlers) {
+		out.writeShort(handler[0].position);
+		out.writeShort(handler[1].position);
+		out.writeShort(handler[2].position);
+		out.writeShort(0);	// catch anything
+	    }
+
+	    out.writeShort(0);
+	}
+
+	private void patch(int branch, Label label) {
+	    int offset = label.position - branch;
+	    code[branch+1] = (byte) (offset >> 8);
+	    code[branch+2] = (byte) offset;
+	}
+
+	private void emit(int value) {
+	    if (size == code.length) {
+		byte[] newCode = new byte[size*2];
+		System.arraycopy(code, 0, newCode, 0, size);
+		code = newCode;
+	    }
+
+	    code[size++] = (byte) value;
+	}
+
+	private void emit16(int value) {
+	    emit(value >> 8);
+	    emit(value);
+	}
+
+	private int access, nameIndex, descriptorIndex, maxStack, maxLocals;
+	private byte[] code = new byte[256];
+	private int size = 0;
+	private ArrayList<Label[]> handlers = new ArrayList<Label[]>();
+    }
+
+    private static class Loader extends ClassLoader {
+	Loader(ClassLoader parent) {
+	    super(parent);
+	}
+
+	Class<?> define(String name, byte[] bytes) {
+	    return defineClass(name, bytes, 0, bytes.length);
+	}
+    }
+
+    private String name;
+    private int thisClass, superClass;
+
+    private ByteArrayOutputStream constants = new ByteArrayOutputStream();
+    private DataOutputStream constantOut = new DataOutputStream(constants);
+    private HashMap<String, Integer> constantIndex =
+	new HashMap<String, Integer>();
+    private int constantCount = 1;
+
+    private ArrayList<Code> methods = new ArrayList<Code>();
+
+    private static Loader loader = null;
+    private static int numClasses = 0;
+
+    /**
+     * Access flags and opcodes, named as in the JVM specification.
+     */
+    interface Opcodes {
+	int
+	    ACC_PUBLIC		= 0x0001,
+	    ACC_FINAL		= 0x0010,
+	    ACC_SUPER		= 0x0020,
+
+	    ACONST_NULL		= 0x01,
+	    ICONST_0		= 0x03,
+	    LCONST_0		= 0x09,
+	    BIPUSH		= 0x10,
+	    SIPUSH		= 0x11,
+	    LDC			= 0x12,
+	    LDC_W		= 0x13,
+	    LDC2_W		= 0x14,
+	    ILOAD		= 0x15,
+	    ALOAD		= 0x19,
+	    IALOAD		= 0x2E,
+	    LALOAD		= 0x2F,
+	    ISTORE		= 0x36,
+	    ASTORE		= 0x3A,
+	    IASTORE		= 0x4F,
+	    LASTORE		= 0x50,
+	    POP			= 0x57,
+	    DUP2		= 0x5C,
+	    IADD		= 0x60,
+	    LADD		= 0x61,
+	    ISUB		= 0x64,
+	    LMUL		= 0x69,
+	    ISHL		= 0x78,
+	    ISHR		= 0x7A,
+	    LUSHR		= 0x7D,
+	    IAND		= 0x7E,
+	    LAND		= 0x7F,
+	    IOR			= 0x80,
+	    IXOR		= 0x82,
+	    IINC		= 0x84,
+	    I2L			= 0x85,
+	    L2I			= 0x88,
+	    I2B			= 0x91,
+	    I2S			= 0x93,
+	    IFEQ		= 0x99,
+	    IFLT		= 0x9B,
+	    IFGE		= 0x9C,
+	    IFGT		= 0x9D,
+	    IFLE		= 0x9E,
+	    IF_ICMPEQ		= 0x9F,
+	    IF_ICMPNE		= 0xA0,
+	    IF_ICMPLT		= 0xA1,
+	    GOTO		= 0xA7,
+	    IRETURN		= 0xAC,
+	    RETURN		= 0xB1,
+	    GETFIELD		= 0xB4,
+	    INVOKEVIRTUAL	= 0xB6,
+	    INVOKESPECIAL	= 0xB7,
+	    ATHROW		= 0xBF,
+	    IFNULL		= 0xC6;
+    }
+}
@@ -2,7 +2,12 @@
 
 package nachos.machine;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * A COFF (common object file format) loader.
@@ -15,6 +20,7 @@ public class Coff {
 	file = null;
 	entryPoint = 0;
 	sections = null;
+	procedures = new CoffProcedure[0];
     }
     
     /**
@@ -45,6 +51,7 @@ public class Coff {
 	if (coff != null) {
 	    this.entryPoint = coff.entryPoint;
 	    this.sections = coff.sections;
+	    this.procedures = coff.procedures;
 	}
 	else {
 	    byte[] headers = new byte[headerLength+aoutHeaderLength];
@@ -89,7 +96,177 @@ public class Coff {
 		    throw e;
 		}
 	    }
+
+	    // only the profiler looks at the symbol table, so only read it
+	    // then, without taking simulated time
+	    procedures = new CoffProcedure[0];
+	    if (Machine.profiler() != null)
+		loadProcedures(Lib.bytesToInt(headers, 8),
+			       Lib.bytesToInt(headers, 12));
+	}
+    }
+
+    /**
+     * Load the COFF executable in the specified file, taking its entry point
+     * and section headers from a snapshot written by <tt>writeSnapshot()</tt>
+     * instead of reading them from the file again. Nothing is read from the
+     * file until a page is loaded. The symbol table is not restored, so the
+     * executable has no procedures.
+     *
+     * @param	file	the file containing the executable.
+     * @param	in	the snapshot to read the headers from.
+     * @exception	IOException	if the snapshot is corrupt.
+     */
+    public Coff(OpenFile file, DataInputStream in) throws IOException {
+	this.file = file;
+
+	entryPoint = in.readInt();
+	int numSections = in.readInt();
+	if (numSections < 2 || numSections > 10)
+	    throw new IOException("bad section count");
+
+	sections = new CoffSection[numSections];
+	for (int s=0; s<numSections; s++)
+	    sections[s] = new CoffSection(file, this, in);
+
+	procedures = new CoffProcedure[0];
+    }
+
+    /**
+     * Write the entry point and the section headers of this executable to a
+     * snapshot, so that <tt>Coff(OpenFile, DataInputStream)</tt> can load it
+     * again without reading them.
+     *
+     * @param	out	the snapshot to write the headers to.
+     * @exception	IOException	if the sections were not loaded from an
+     *				executable file.
+     */
+    public void writeSnapshot(DataOutputStream out) throws IOException {
+	Lib.assertTrue(file != null);
+
+	out.writeInt(entryPoint);
+	out.writeInt(sections.length);
+	for (int s=0; s<sections.length; s++)
+	    sections[s].writeSnapshot(out);
+    }
+
+    /**
+     * Load the procedure descriptors from the ECOFF symbolic header at
+     * <i>symbolPointer</i>. Executables without a symbol table, or with one
+     * that does not make sense, simply have no procedures. The symbol table
+     * is read with <tt>OpenFile.readUncharged()</tt>, so that loading it does
+     * not change the timing the profiler measures; files that cannot be read
+     * that way have no procedures either.
+     *
+     * @param	symbolPointer	the offset of the symbolic header.
+     * @param	symbolLength	the length of the symbolic header.
+     */
+    private void loadProcedures(int symbolPointer, int symbolLength) {
+	if (symbolPointer <= 0 || symbolLength != hdrrLength ||
+	    symbolPointer+hdrrLength > file.length()) {
+	    Lib.debug(dbgCoff, "\tno symbol table");
+	    return;
+	}
+
+	byte[] hdrr = new byte[hdrrLength];
+	if (file.readUncharged(symbolPointer, hdrr, 0, hdrrLength) != hdrrLength) {
+	    Lib.debug(dbgCoff, "\tsymbol table not readable");
+	    return;
+	}
+
+	if (Lib.bytesToUnsignedShort(hdrr, 0) != 0x7009) {
+	    Lib.debug(dbgCoff, "\tbad symbolic header magic number");
+	    return;
+	}
+
+	int numProcs = Lib.bytesToInt(hdrr, 24);
+	int procOffset = Lib.bytesToInt(hdrr, 28);
+	int numSymbols = Lib.bytesToInt(hdrr, 32);
+	int symbolOffset = Lib.bytesToInt(hdrr, 36);
+	int stringsLength = Lib.bytesToInt(hdrr, 56);
+	int stringsOffset = Lib.bytesToInt(hdrr, 60);
+	int numFiles = Lib.bytesToInt(hdrr, 72);
+	int fileOffset = Lib.bytesToInt(hdrr, 76);
+
+	// the tables are adjacent, so read them all at once
+	int[][] tables = {
+	    { procOffset, numProcs*pdrLength },
+	    { symbolOffset, numSymbols*symrLength },
+	    { stringsOffset, stringsLength },
+	    { fileOffset, numFiles*fdrLength }
+	};
+
+	int start = Integer.MAX_VALUE, end = 0;
+	for (int i=0; i<tables.length; i++) {
+	    if (tables[i][0] < 0 || tables[i][1] < 0) {
+		Lib.debug(dbgCoff, "\tbad symbol table offsets");
+		return;
+	    }
+	    start = Math.min(start, tables[i][0]);
+	    end = Math.max(end, tables[i][0] + tables[i][1]);
+	}
+
+	if (numProcs == 0 || end > file.length()) {
+	    Lib.debug(dbgCoff, "\tsymbol table truncated");
+	    return;
+	}
+
+	byte[] buf = new byte[end-start];
+	if (file.readUncharged(start, buf, 0, buf.length) != buf.length) {
+	    Lib.debug(dbgCoff, "\tsymbol table not readable");
+	    return;
+	}
+
+	procOffset -= start;
+	symbolOffset -= start;
+	stringsOffset -= start;
+	fileOffset -= start;
+
+	CoffProcedure[] found = new CoffProcedure[numProcs];
+	int count = 0;
+
+	for (int f=0; f<numFiles; f++) {
+	    int fdr = fileOffset + f*fdrLength;
+	    int stringBase = Lib.bytesToInt(buf, fdr+8);
+	    int symbolBase = Lib.bytesToInt(buf, fdr+16);
+	    int firstProc = Lib.bytesToShort(buf, fdr+40);
+	    int fileProcs = Lib.bytesToShort(buf, fdr+42);
+
+	    for (int p=firstProc; p<firstProc+fileProcs; p++) {
+		if (p < 0 || p >= numProcs)
+		    continue;
+
+		int pdr = procOffset + p*pdrLength;
+		int symbol = symbolBase + Lib.bytesToInt(buf, pdr+4);
+		if (symbol < 0 || symbol >= numSymbols)
+		    continue;
+
+		int symr = symbolOffset + symbol*symrLength;
+		int name = stringBase + Lib.bytesToInt(buf, symr);
+		if (name < 0 || name >= stringsLength)
+		    continue;
+
+		found[count++] = new CoffProcedure(
+		    Lib.bytesToString(buf, stringsOffset+name,
+				      stringsLength-name),
+		    Lib.bytesToInt(buf, symr+4),
+		    Lib.bytesToShort(buf, pdr+36),
+		    Lib.bytesToInt(buf, pdr+32),
+		    Lib.bytesToInt(buf, pdr+12),
+		    Lib.bytesToInt(buf, pdr+16));
+	    }
 	}
+
+	procedures = new CoffProcedure[count];
+	System.arraycopy(found, 0, procedures, 0, count);
+	Arrays.sort(procedures, new Comparator<CoffProcedure>() {
+		public int compare(CoffProcedure a, CoffProcedure b) {
+		    return Integer.compareUnsigned(a.getAddress(),
+						   b.getAddress());
+		}
+	    });
+
+	Lib.debug(dbgCoff, "\tloaded " + count + " procedures");
     }
 
     /**
@@ -127,6 +304,45 @@ public class Coff {
 	return entryPoint;
     }
 
+    /**
+     * Return the procedures described by the symbol table of the executable,
+     * sorted by address. The symbol table is only loaded when the profiler is
+     * enabled, so this is empty otherwise.
+     *
+     * @return	the procedures in the executable.
+     */
+    public CoffProcedure[] getProcedures() {
+	return procedures.clone();
+    }
+
+    /**
+     * Find the procedure containing the instruction at the specified virtual
+     * address. This is the procedure with the highest entry point not above
+     * <i>vaddr</i>.
+     *
+     * @param	vaddr	the virtual address of an instruction.
+     * @return	the procedure containing <i>vaddr</i>, or <tt>null</tt> if
+     *		there is none.
+     */
+    public CoffProcedure findProcedure(int vaddr) {
+	int low = 0, high = procedures.length-1;
+	CoffProcedure result = null;
+
+	while (low <= high) {
+	    int middle = (low+high) >>> 1;
+	    if (Integer.compareUnsigned(procedures[middle].getAddress(),
+					vaddr) <= 0) {
+		result = procedures[middle];
+		low = middle+1;
+	    }
+	    else {
+		high = middle-1;
+	    }
+	}
+
+	return result;
+    }
+
     /**
      * Close the executable file and release any resources allocated by this
      * loader.
@@ -143,9 +359,15 @@ public class Coff {
     protected int entryPoint;
     /** The sections in this COFF executable. */
     protected CoffSection sections[];
+    /** The procedures in this COFF executable, sorted by address. */
+    protected CoffProcedure procedures[];
 
     private static final int headerLength = 20;
     private static final int aoutHeaderLength = 28;
+    private static final int hdrrLength = 96;
+    private static final int fdrLength = 72;
+    private static final int pdrLength = 52;
+    private static final int symrLength = 12;
 
     private static final char dbgCoff = 'c';
 }
@@ -0,0 +1,90 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * A <tt>CoffProcedure</tt> describes one procedure of a COFF executable, as
+ * recorded in the ECOFF symbol table: its name, its first instruction, and
+ * enough of its stack frame layout to find its caller.
+ */
+public class CoffProcedure {
+    /**
+     * Allocate a new procedure descriptor.
+     *
+     * @param	name		the name of the procedure.
+     * @param	address		the virtual address of its first instruction.
+     * @param	frameReg	the register the frame is addressed from.
+     * @param	frameOffset	the size of the frame.
+     * @param	regMask		the mask of registers saved in the frame.
+     * @param	regOffset	the offset of the saved registers from the
+     *				top of the frame.
+     */
+    public CoffProcedure(String name, int address, int frameReg,
+			 int frameOffset, int regMask, int regOffset) {
+	this.name = name;
+	this.address = address;
+	this.frameReg = frameReg;
+	this.frameOffset = frameOffset;
+	this.regMask = regMask;
+	this.regOffset = regOffset;
+    }
+
+    /**
+     * Return the name of this procedure.
+     *
+     * @return	the name of this procedure.
+     */
+    public String getName() {
+	return name;
+    }
+
+    /**
+     * Return the virtual address of the first instruction of this procedure.
+     *
+     * @return	the entry point of this procedure.
+     */
+    public int getAddress() {
+	return address;
+    }
+
+    /**
+     * Test whether this procedure saves the return address in its frame. A
+     * procedure that does not is a leaf, and returns through <tt>$31</tt>.
+     *
+     * @return	<tt>true</tt> if <tt>$31</tt> is saved in the frame.
+     */
+    public boolean savesReturnAddress() {
+	return (regMask & (1<<Processor.regRA)) != 0;
+    }
+
+    /**
+     * Return the address of the top of this procedure's frame, which is the
+     * stack pointer of its caller. Hand-written assembly procedures record no
+     * frame register, and leave the stack pointer alone.
+     *
+     * @param	registers	the register values seen inside the procedure.
+     * @return	the virtual frame pointer.
+     */
+    public int getFramePointer(int[] registers) {
+	if (frameReg == 0)
+	    return registers[Processor.regSP];
+
+	return registers[frameReg] + frameOffset;
+    }
+
+    /**
+     * Return the address where this procedure saved its return address. The
+     * return address is the highest register saved, so it is stored first.
+     *
+     * @param	framePointer	the virtual frame pointer.
+     * @return	the address of the saved return address.
+     */
+    public int getReturnAddressSlot(int framePointer) {
+	return framePointer + regOffset;
+    }
+
+    private String name;
+    private int address;
+    private int frameReg, frameOffset;
+    private int regMask, regOffset;
+}
@@ -4,8 +4,10 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
-import java.util.Arrays;
+import java.io.IOException;
 
 /**
  * A <tt>CoffSection</tt> manages a single section within a COFF executable.
@@ -110,6 +112,59 @@ public class CoffSection {
 	firstVPN = vaddr / Processor.pageSize;
     }
 
+    /**
+     * Load a COFF section from an executable, taking its header from a
+     * snapshot written by <tt>writeSnapshot()</tt>.
+     *
+     * @param	file	the file containing the executable.
+     * @param	coff	the COFF object to which this section belongs.
+     * @param	in	the snapshot to read the header from.
+     *
+     * @exception	IOException	if the snapshot is corrupt.
+     */
+    public CoffSection(OpenFile file, Coff coff,
+		       DataInputStream in) throws IOException {
+	this.file = file;
+	this.coff = coff;
+
+	name = in.readUTF();
+	executable = in.readBoolean();
+	readOnly = in.readBoolean();
+	initialized = in.readBoolean();
+	size = in.readInt();
+	contentOffset = in.readInt();
+	firstVPN = in.readInt();
+
+	if (size < 0 || firstVPN < 0 ||
+	    initialized && (contentOffset < 0 ||
+			    contentOffset+size > file.length())) {
+	    Lib.debug(dbgCoffSection, "\tinvalid section in snapshot");
+	    throw new IOException("invalid section in snapshot");
+	}
+
+	numPages = Lib.divRoundUp(size, Processor.pageSize);
+    }
+
+    /**
+     * Write the header of this section to a snapshot.
+     *
+     * @param	out	the snapshot to write the header to.
+     * @exception	IOException	if this section was not loaded from an
+     *				executable file.
+     */
+    public void writeSnapshot(DataOutputStream out) throws IOException {
+	if (file == null)
+	    throw new IOException("section not loaded from a file");
+
+	out.writeUTF(name);
+	out.writeBoolean(executable);
+	out.writeBoolean(readOnly);
+	out.writeBoolean(initialized);
+	out.writeInt(size);
+	out.writeInt(contentOffset);
+	out.writeInt(firstVPN);
+    }
+
     /**
      * Return the COFF object used to load this executable instance.
      *
@@ -180,7 +235,7 @@ public class CoffSection {
 	Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
 
 	int pageSize = Processor.pageSize;
-	byte[] memory = Machine.processor().getMemory();
+	Processor processor = Machine.processor();
 	int paddr = ppn*pageSize;
 	int faddr = contentOffset + spn*pageSize;
 	int initlen;
@@ -196,10 +251,13 @@ public class CoffSection {
 	else
 	    initlen = pageSize;
 
-	if (initlen > 0)
-	    Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+	if (initlen > 0) {
+	    byte[] data = new byte[initlen];
+	    Lib.strictReadFile(file, faddr, data, 0, initlen);
+	    processor.writeMemory(paddr, data, 0, initlen);
+	}
 
-	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	processor.zeroMemory(paddr+initlen, pageSize-initlen);
     }
 
     /** The COFF object to which this section belongs. */
@@ -4,9 +4,13 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.SortedSet;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +57,6 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
     }
 
     /**
@@ -120,22 +123,86 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Wait for the next pending interrupt, as a processor with nothing to do
+     * would. Simulated time jumps straight to the time the interrupt is due,
+     * and the ticks skipped are counted as idle time. Then the interrupts
+     * that are due are handled, as on a tick. If no interrupt is pending,
+     * nothing happens.
+     *
+     * <p>
+     * Interrupts must be disabled, so that the kernel can atomically check
+     * that it has nothing to run and wait.
+     */
+    public void idle() {
+	Stats stats = privilege.stats;
+
+	Lib.assertTrue(disabled());
+
+	long time = nextDue();
+	if (time == Long.MAX_VALUE)
+	    return;
+
+	if (time > stats.totalTicks) {
+	    Lib.debug(dbgInt, "Idling until time = " + time);
+
+	    stats.idleTicks += time - stats.totalTicks;
+	    stats.totalTicks = time;
+	}
+
+	inKernelMode = true;
+	checkIfDue();
+    }
+
+    /**
+     * Wait until a processor running user code outside the kernel signals
+     * that its thread wants to come back in (see <tt>signal()</tt>), much as
+     * a real processor waits for an inter-processor interrupt. No simulated
+     * time passes. A signal sent before this call is not lost, but one
+     * signal may also wake up a later call, so the caller must check again
+     * what it was waiting for.
+     *
+     * <p>
+     * Interrupts must be disabled.
+     */
+    public void waitForSignal() {
+	Lib.assertTrue(disabled());
+
+	signals.acquireUninterruptibly();
+    }
+
+    /**
+     * Wake up the kernel if it is waiting in <tt>waitForSignal()</tt>. Unlike
+     * every other method here, this can be called from outside the kernel.
+     */
+    public void signal() {
+	signals.release();
+    }
+
     private void schedule(long when, String type, Runnable handler) {
+	schedule(when, new PendingInterrupt(type, handler));
+    }
+
+    private void schedule(long when, PendingInterrupt toOccur) {
 	Lib.assertTrue(when>0);
+	Lib.assertTrue(!toOccur.scheduled, "interrupt already scheduled");
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+	toOccur.time = time;
+	toOccur.id = numPendingInterruptsCreated++;
 
 	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
+		  "Scheduling the " + toOccur.type +
 		  " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	insert(toOccur);
     }
 
     private void tick(boolean inKernelMode) {
 	Stats stats = privilege.stats;
 
+	this.inKernelMode = inKernelMode;
+
 	if (inKernelMode) {
 	    stats.kernelTicks += Stats.KernelTick;
 	    stats.totalTicks += Stats.KernelTick;
@@ -153,6 +220,114 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private int userTicksUntilDue() {
+	// debugging prints every tick, so don't skip any
+	if (Lib.test(dbgInt))
+	    return 0;
+
+	long time = nextDue();
+	if (time == Long.MAX_VALUE)
+	    return Integer.MAX_VALUE;
+
+	long ticks = (time - privilege.stats.totalTicks - 1) / Stats.UserTick;
+
+	return (int) Math.max(0, Math.min(ticks, Integer.MAX_VALUE));
+    }
+
+    private void tickUser(int count) {
+	Stats stats = privilege.stats;
+
+	stats.userTicks += (long) count * Stats.UserTick;
+	stats.totalTicks += (long) count * Stats.UserTick;
+
+	Lib.assertTrue(nextDue() > stats.totalTicks);
+    }
+
+    private void tickOutside(int count) {
+	Stats stats = privilege.stats;
+
+	Lib.assertTrue(disabled());
+
+	stats.userTicks += (long) count * Stats.UserTick;
+	stats.totalTicks += (long) count * Stats.UserTick;
+
+	inKernelMode = false;
+	checkIfDue();
+	enabled = true;
+    }
+
+    /**
+     * Tests whether the tick now being processed was spent in the kernel.
+     * Interrupt handlers can use this to tell whether the current processor
+     * was running user code when the interrupt arrived.
+     *
+     * @return	<tt>false</tt> if the last tick was a user tick.
+     */
+    boolean inKernelMode() {
+	return inKernelMode;
+    }
+
+    /**
+     * Write the time and type of every pending interrupt to a snapshot.
+     */
+    void saveSnapshot(DataOutputStream out) throws IOException {
+	ArrayList pending = getPending();
+
+	out.writeInt(pending.size());
+	for (Iterator i=pending.iterator(); i.hasNext(); ) {
+	    PendingInterrupt next = (PendingInterrupt) i.next();
+	    out.writeLong(next.time);
+	    out.writeUTF(next.type);
+	}
+    }
+
+    /**
+     * Move the pending interrupts to the times recorded in a snapshot. The
+     * handlers cannot be saved, so each interrupt in the snapshot takes over
+     * a pending interrupt of the same type, which the devices scheduled when
+     * they were created. Interrupts of a type that nothing has scheduled are
+     * dropped, and interrupts not in the snapshot are left alone.
+     */
+    void restoreSnapshot(DataInputStream in) throws IOException {
+	ArrayList pending = getPending();
+	ArrayList restored = new ArrayList();
+
+	for (int count=in.readInt(); count>0; count--) {
+	    long time = in.readLong();
+	    String type = in.readUTF();
+
+	    PendingInterrupt match = null;
+	    for (Iterator i=pending.iterator(); i.hasNext(); ) {
+		PendingInterrupt next = (PendingInterrupt) i.next();
+		if (next.type.equals(type)) {
+		    match = next;
+		    i.remove();
+		    break;
+		}
+	    }
+
+	    if (match == null) {
+		Lib.debug(dbgInt, "Dropping the " + type + " interrupt");
+		continue;
+	    }
+
+	    match.time = time;
+	    match.id = numPendingInterruptsCreated++;
+	    restored.add(match);
+	}
+
+	pending.addAll(restored);
+
+	// the clock may have moved backwards, so rebuild the wheel around it
+	long start = privilege.stats.totalTicks;
+	for (Iterator i=pending.iterator(); i.hasNext(); )
+	    start = Math.min(start, ((PendingInterrupt) i.next()).time);
+
+	clear(start);
+	for (Iterator i=pending.iterator(); i.hasNext(); )
+	    insert((PendingInterrupt) i.next());
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -161,18 +336,17 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (nextDue() > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
-	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+
+	// a handler may switch threads, and another thread's tick may take
+	// interrupts off the wheel before this loop resumes
+	long due;
+	while ((due = nextDue()) <= time) {
+	    advance(due);
+	    PendingInterrupt next = removeFirst(due);
 
 	    Lib.assertTrue(next.time <= time);
 
@@ -192,7 +366,7 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
+	for (Iterator i=getPending().iterator(); i.hasNext(); ) {
 	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
@@ -201,12 +375,187 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
+    /**
+     * Add an interrupt to the wheel. An interrupt goes on the level of the
+     * most significant digit in which its time differs from the wheel time,
+     * in the slot for its own value of that digit. The interrupts in a slot
+     * are kept in the order they were scheduled, so interrupts due at the
+     * same time occur in that order.
+     */
+    private void insert(PendingInterrupt toOccur) {
+	Lib.assertTrue(toOccur.time >= wheelTime);
+
+	long differ = toOccur.time ^ wheelTime;
+	int level = (differ == 0) ? 0 :
+	    (63 - Long.numberOfLeadingZeros(differ)) / wheelBits;
+	int slot = digit(toOccur.time, level);
+	int index = level*wheelSize + slot;
+
+	PendingInterrupt prev = null, next = heads[index];
+	if (tails[index] != null && tails[index].id < toOccur.id) {
+	    prev = tails[index];
+	    next = null;
+	}
+	else {
+	    while (next != null && next.id < toOccur.id) {
+		prev = next;
+		next = next.next;
+	    }
+	}
+
+	toOccur.next = next;
+	if (prev == null)
+	    heads[index] = toOccur;
+	else
+	    prev.next = toOccur;
+	if (next == null)
+	    tails[index] = toOccur;
+
+	occupied[level] |= 1L << slot;
+	toOccur.scheduled = true;
+	numPending++;
+
+	if (toOccur.time < nextDue)
+	    nextDue = toOccur.time;
+    }
+
+    /**
+     * Return the time of the earliest pending interrupt, or
+     * <tt>Long.MAX_VALUE</tt> if there is none. Every interrupt on a level is
+     * due before every interrupt on the levels above it, and the slots of a
+     * level are in time order, so the earliest interrupt is in the first
+     * occupied slot of the lowest occupied level.
+     */
+    private long nextDue() {
+	if (nextDue != unknown)
+	    return nextDue;
+
+	nextDue = Long.MAX_VALUE;
+
+	for (int level=0; level<wheelLevels; level++) {
+	    if (occupied[level] == 0)
+		continue;
+
+	    int slot = Long.numberOfTrailingZeros(occupied[level]);
+	    for (PendingInterrupt next = heads[level*wheelSize + slot];
+		 next != null; next = next.next)
+		nextDue = Math.min(nextDue, next.time);
+	    break;
+	}
+
+	return nextDue;
+    }
+
+    /**
+     * Turn the wheel forward to the specified time, which must not be later
+     * than any pending interrupt. On each level, the slot the wheel now points
+     * to holds interrupts whose time now differs from the wheel time only in
+     * lower digits, so they are moved down.
+     */
+    private void advance(long time) {
+	Lib.assertTrue(time >= wheelTime);
+
+	wheelTime = time;
+
+	for (int level=wheelLevels-1; level>0; level--) {
+	    int slot = digit(time, level);
+	    if ((occupied[level] & (1L << slot)) == 0)
+		continue;
+
+	    int index = level*wheelSize + slot;
+	    PendingInterrupt next = heads[index];
+	    heads[index] = tails[index] = null;
+	    occupied[level] &= ~(1L << slot);
+
+	    while (next != null) {
+		PendingInterrupt toOccur = next;
+		next = next.next;
+
+		numPending--;
+		insert(toOccur);
+	    }
+	}
+    }
+
+    /**
+     * Take the first interrupt due at the wheel time off the wheel.
+     */
+    private PendingInterrupt removeFirst(long time) {
+	Lib.assertTrue(time == wheelTime);
+
+	int slot = digit(time, 0);
+	PendingInterrupt first = heads[slot];
+	Lib.assertTrue(first != null && first.time == time);
+
+	heads[slot] = first.next;
+	if (heads[slot] == null) {
+	    tails[slot] = null;
+	    occupied[0] &= ~(1L << slot);
+	}
+
+	first.next = null;
+	first.scheduled = false;
+	numPending--;
+	nextDue = unknown;
+
+	return first;
+    }
+
+    /**
+     * Return every pending interrupt, in the order they will occur.
+     */
+    private ArrayList getPending() {
+	ArrayList pending = new ArrayList(numPending);
+
+	for (int index=0; index<heads.length; index++) {
+	    for (PendingInterrupt next = heads[index]; next != null;
+		 next = next.next)
+		pending.add(next);
+	}
+
+	Collections.sort(pending);
+	return pending;
+    }
+
+    /**
+     * Take every interrupt off the wheel, and set the wheel time.
+     */
+    private void clear(long time) {
+	for (int index=0; index<heads.length; index++) {
+	    for (PendingInterrupt next = heads[index]; next != null; ) {
+		PendingInterrupt toOccur = next;
+		next = next.next;
+
+		toOccur.next = null;
+		toOccur.scheduled = false;
+	    }
+
+	    heads[index] = tails[index] = null;
+	}
+
+	for (int level=0; level<wheelLevels; level++)
+	    occupied[level] = 0;
+
+	numPending = 0;
+	wheelTime = time;
+	nextDue = Long.MAX_VALUE;
+    }
+
+    private static int digit(long time, int level) {
+	return (int) (time >>> (level*wheelBits)) & (wheelSize-1);
+    }
+
+    /**
+     * An interrupt that a device can schedule. A device that schedules the
+     * same interrupt over and over should create it once, with
+     * <tt>Privilege.InterruptPrivilege.createInterrupt()</tt>, and schedule
+     * it again each time it occurs. An interrupt cannot be scheduled again
+     * until it has occurred.
+     */
+    public final class PendingInterrupt implements Comparable {
+	PendingInterrupt(String type, Runnable handler) {
 	    this.type = type;
 	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
 	}
 
 	public int compareTo(Object o) {
@@ -230,6 +579,8 @@ public final class Interrupt {
 	Runnable handler;
 
 	private long id;
+	private boolean scheduled = false;
+	private PendingInterrupt next = null;
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -237,7 +588,29 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    private boolean inKernelMode = true;
+    private Semaphore signals = new Semaphore(0);
+
+    /**
+     * The pending interrupts, on a hierarchical timing wheel. Each level has
+     * a slot for each value of one <tt>wheelBits</tt>-bit digit of the time
+     * an interrupt is due, and a bit in <tt>occupied</tt> for each slot that
+     * is not empty.
+     */
+    private static final int wheelBits = 6;
+    private static final int wheelSize = 1 << wheelBits;
+    private static final int wheelLevels = (64 + wheelBits - 1) / wheelBits;
+
+    private PendingInterrupt[] heads =
+	new PendingInterrupt[wheelLevels*wheelSize];
+    private PendingInterrupt[] tails =
+	new PendingInterrupt[wheelLevels*wheelSize];
+    private long[] occupied = new long[wheelLevels];
+    private long wheelTime = 0;
+    private int numPending = 0;
+    private long nextDue = Long.MAX_VALUE;
+
+    private static final long unknown = -1;
 
     private static final char dbgInt = 'i';
 
@@ -246,8 +619,28 @@ public final class Interrupt {
 	    Interrupt.this.schedule(when, type, handler);
 	}
 
+	public PendingInterrupt createInterrupt(String type, Runnable handler) {
+	    return new PendingInterrupt(type, handler);
+	}
+
+	public void schedule(long when, PendingInterrupt toOccur) {
+	    Interrupt.this.schedule(when, toOccur);
+	}
+
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public int userTicksUntilDue() {
+	    return Interrupt.this.userTicksUntilDue();
+	}
+
+	public void tickUser(int count) {
+	    Interrupt.this.tickUser(count);
+	}
+
+	public void tickOutside(int count) {
+	    Interrupt.this.tickOutside(count);
+	}
     }
 }
@@ -0,0 +1,318 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.PrivilegedExceptionAction;
+import java.security.PrivilegedActionException;
+
+/**
+ * A journal of the inputs that make one run of Nachos differ from another,
+ * used to record a run and replay it exactly.
+ *
+ * <p>
+ * Everything in the simulation is deterministic except for what comes from
+ * outside it: characters typed at the console, packets arriving from the
+ * network, and choices the kernel makes with its own random numbers. When
+ * recording, each of these is logged with the tick at which it was seen.
+ * When replaying, the logged inputs are handed back at the same ticks, and
+ * the live ones are ignored. The random numbers of <tt>Lib.random()</tt>,
+ * which decide timer jitter and network drops, only depend on the seed, so
+ * only the seed is logged.
+ *
+ * <p>
+ * A device polls for an input that is not always present by calling
+ * <tt>poll()</tt> every time it looks; only inputs that were actually present
+ * are logged. An input that is always present is passed through
+ * <tt>input()</tt>.
+ */
+public final class Journal {
+    /**
+     * Allocate a new journal. The journal must be created before anything
+     * draws a random number.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	fileName	the name of the journal file.
+     * @param	replaying	<tt>true</tt> to replay the journal,
+     *				<tt>false</tt> to record a new one.
+     */
+    public Journal(Privilege privilege, String fileName, boolean replaying) {
+	System.out.print(replaying ? " replay" : " record");
+
+	this.privilege = privilege;
+	this.fileName = fileName;
+	this.replaying = replaying;
+
+	final File file = new File(fileName);
+
+	try {
+	    if (replaying) {
+		byte[] bytes = (byte[])
+		    privilege.doPrivileged(new PrivilegedExceptionAction() {
+			    public Object run() throws IOException {
+				return readFile(file);
+			    }
+			});
+
+		in = new DataInputStream(new ByteArrayInputStream(bytes));
+		Lib.assertTrue(in.readInt() == magic, "bad journal " + fileName);
+		Lib.setRandomState(new long[] { in.readLong(), 0 });
+		readEvent();
+	    }
+	    else {
+		out = (DataOutputStream)
+		    privilege.doPrivileged(new PrivilegedExceptionAction() {
+			    public Object run() throws IOException {
+				return new DataOutputStream(
+				    new BufferedOutputStream(
+					new FileOutputStream(file)));
+			    }
+			});
+
+		out.writeInt(magic);
+		out.writeLong(Lib.getRandomState()[0]);
+	    }
+	}
+	catch (PrivilegedActionException e) {
+	    Lib.assertNotReached("could not open journal " + fileName);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("bad journal " + fileName);
+	}
+    }
+
+    /**
+     * Tests whether this journal is being replayed. A device should not
+     * consume live input while replaying.
+     *
+     * @return	<tt>true</tt> if replaying.
+     */
+    public boolean isReplaying() {
+	return replaying;
+    }
+
+    /**
+     * Pass an input that is only sometimes present through the journal.
+     *
+     * @param	channel	the kind of input.
+     * @param	value	the live input, or -1 if there is none. Ignored when
+     *			replaying.
+     * @return	the input to use, or -1 if there is none.
+     */
+    public int poll(int channel, int value) {
+	if (!replaying) {
+	    if (value != -1) {
+		writeEvent(channel);
+		writeNumber(value);
+	    }
+	    return value;
+	}
+
+	if (!nextEventIs(channel))
+	    return -1;
+
+	int result = (int) readNumber();
+	readEvent();
+	return result;
+    }
+
+    /**
+     * Pass an input that is only sometimes present, such as a packet,
+     * through the journal.
+     *
+     * @param	channel	the kind of input.
+     * @param	value	the live input, or <tt>null</tt> if there is none.
+     *			Ignored when replaying.
+     * @return	the input to use, or <tt>null</tt> if there is none.
+     */
+    public byte[] poll(int channel, byte[] value) {
+	if (!replaying) {
+	    if (value != null) {
+		writeEvent(channel);
+		writeNumber(value.length);
+		write(value);
+	    }
+	    return value;
+	}
+
+	if (!nextEventIs(channel))
+	    return null;
+
+	byte[] result = new byte[(int) readNumber()];
+	try {
+	    in.readFully(result);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("journal truncated");
+	}
+
+	readEvent();
+	return result;
+    }
+
+    /**
+     * Pass an input that is always present, such as a random choice made by
+     * the kernel, through the journal.
+     *
+     * @param	channel	the kind of input.
+     * @param	value	the live input. Ignored when replaying.
+     * @return	the input to use.
+     */
+    public int input(int channel, int value) {
+	if (!replaying) {
+	    writeEvent(channel);
+	    writeNumber(((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+	    return value;
+	}
+
+	Lib.assertTrue(nextEventIs(channel),
+		       "replay diverged at time = " + privilege.stats.totalTicks);
+
+	int zigzag = (int) readNumber();
+	readEvent();
+	return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    /**
+     * Finish recording or replaying. Called when the machine halts.
+     */
+    public void close() {
+	if (replaying) {
+	    if (nextChannel != -1)
+		System.out.println("Replay ended before time = " + nextTime);
+	    return;
+	}
+
+	try {
+	    out.close();
+	}
+	catch (IOException e) {
+	    System.out.println("could not write journal " + fileName);
+	}
+    }
+
+    private boolean nextEventIs(int channel) {
+	long time = privilege.stats.totalTicks;
+
+	Lib.assertTrue(nextChannel == -1 || nextTime >= time,
+		       "replay diverged at time = " + nextTime);
+
+	return nextChannel == channel && nextTime == time;
+    }
+
+    private void writeEvent(int channel) {
+	long time = privilege.stats.totalTicks;
+
+	try {
+	    out.writeByte(channel);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("could not write journal " + fileName);
+	}
+
+	writeNumber(time - lastTime);
+	lastTime = time;
+    }
+
+    private void readEvent() {
+	try {
+	    nextChannel = in.readUnsignedByte();
+	}
+	catch (EOFException e) {
+	    nextChannel = -1;
+	    return;
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("journal truncated");
+	}
+
+	nextTime = lastTime + readNumber();
+	lastTime = nextTime;
+    }
+
+    /**
+     * Write a non-negative number in as few bytes as it needs, seven bits per
+     * byte, with the high bit set on all but the last byte.
+     */
+    private void writeNumber(long value) {
+	try {
+	    while ((value & ~0x7FL) != 0) {
+		out.writeByte((int) (value & 0x7F) | 0x80);
+		value >>>= 7;
+	    }
+	    out.writeByte((int) value);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("could not write journal " + fileName);
+	}
+    }
+
+    private long readNumber() {
+	long value = 0;
+
+	try {
+	    for (int shift=0; ; shift+=7) {
+		int b = in.readUnsignedByte();
+		value |= (long) (b & 0x7F) << shift;
+		if ((b & 0x80) == 0)
+		    return value;
+	    }
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("journal truncated");
+	    return 0;
+	}
+    }
+
+    private void write(byte[] bytes) {
+	try {
+	    out.write(bytes);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("could not write journal " + fileName);
+	}
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+	FileInputStream in = new FileInputStream(file);
+	try {
+	    byte[] bytes = new byte[(int) file.length()];
+	    new DataInputStream(in).readFully(bytes);
+	    return bytes;
+	}
+	finally {
+	    in.close();
+	}
+    }
+
+    /** Characters read from the console. */
+    public static final int console = 0;
+    /** Packets received from the network. */
+    public static final int network = 1;
+    /** Random choices made by the kernel. */
+    public static final int kernel = 2;
+
+    private Privilege privilege;
+    private String fileName;
+    private boolean replaying;
+
+    private DataOutputStream out = null;
+    private DataInputStream in = null;
+
+    private long lastTime = 0;
+    private int nextChannel = -1;
+    private long nextTime;
+
+    private static final int magic = 0x4E4A524E;
+}
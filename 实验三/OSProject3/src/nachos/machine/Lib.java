@@ -32,7 +32,7 @@ public final class Lib {
     private Lib() {
     }
 
-    private static Random random = null;
+    private static CountingRandom random = null;
 
     /**
      * Seed the random number generater. May only be called once.
@@ -41,9 +41,50 @@ public final class Lib {
      */
     public static void seedRandom(long randomSeed) {
 	assertTrue(random == null);
-	random = new Random(randomSeed);
+	random = new CountingRandom(randomSeed);
     }
     
+    /**
+     * Return the state of the random number generator, so that it can be
+     * saved in a snapshot.
+     *
+     * @return	the seed, and the number of values drawn since seeding.
+     */
+    static long[] getRandomState() {
+	return new long[] { random.seed, random.calls };
+    }
+
+    /**
+     * Put the random number generator back in a state returned by
+     * <tt>getRandomState()</tt>.
+     */
+    static void setRandomState(long[] state) {
+	random = new CountingRandom(state[0]);
+	random.skip(state[1]);
+    }
+
+    /**
+     * A random number generator that remembers how far it is from its seed.
+     */
+    private static class CountingRandom extends Random {
+	CountingRandom(long seed) {
+	    super(seed);
+	    this.seed = seed;
+	}
+
+	protected int next(int bits) {
+	    calls++;
+	    return super.next(bits);
+	}
+
+	void skip(long count) {
+	    while (calls < count)
+		next(32);
+	}
+
+	long seed, calls = 0;
+    }
+
     /**
      * Return a random integer between 0 and <i>range - 1</i>. Must not be
      * called before <tt>seedRandom()</tt> seeds the random number generator.
@@ -6,6 +6,11 @@ import nachos.security.*;
 import nachos.ag.*;
 
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.security.PrivilegedExceptionAction;
+import java.security.PrivilegedActionException;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
@@ -27,6 +32,11 @@ public final class Machine {
 
 	Config.load(configFileName);
 
+	// a restored snapshot already has its program loaded
+	Lib.assertTrue(shellProgramName == null ||
+		       Config.getString("Kernel.restoreSnapshot") == null,
+		       "-x cannot be used with Kernel.restoreSnapshot");
+
 	// get the current directory (.)
 	baseDirectory = new File(new File("").getAbsolutePath());
 	// get the nachos directory (./nachos)
@@ -52,6 +62,11 @@ public final class Machine {
 	TCB.givePrivilege(privilege);
 	privilege.stats = stats;
 
+	// the JIT engine defines classes with a class loader of its own, which
+	// cannot be created once the security manager is enabled
+	if (Config.getString("Processor.engine", "interpreter").equals("jit"))
+	    ClassAssembler.createLoader();
+
 	securityManager.enable();
 	createDevices();
 	checkUserClasses();
@@ -97,9 +112,40 @@ public final class Machine {
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
 	stats.print();
+	writeStats();
+	if (profiler != null)
+	    profiler.print();
+	if (journal != null)
+	    journal.close();
 	terminate();
     }
 
+    /**
+     * Write the statistics counters to <tt>Stats.csvFile</tt>, if it is set.
+     */
+    private static void writeStats() {
+	String csvFileName = Config.getString("Stats.csvFile", null);
+	if (csvFileName == null)
+	    return;
+
+	final File csvFile = new File(csvFileName);
+
+	try {
+	    privilege.doPrivileged(new PrivilegedExceptionAction() {
+		    public Object run() throws IOException {
+			PrintWriter out =
+			    new PrintWriter(new FileWriter(csvFile));
+			stats.writeCSV(out);
+			out.close();
+			return null;
+		    }
+		});
+	}
+	catch (PrivilegedActionException e) {
+	    System.out.println("could not write " + csvFileName);
+	}
+    }
+
     /**
      * Return an array containing all command line arguments.
      *
@@ -168,6 +214,17 @@ public final class Machine {
 
     private static void createDevices() {
 	interrupt = new Interrupt(privilege);
+
+	// the journal must see the random seed before the timer uses it
+	String recordName = Config.getString("Machine.record");
+	String replayName = Config.getString("Machine.replay");
+	Lib.assertTrue(recordName == null || replayName == null,
+		       "cannot record and replay at once");
+	if (recordName != null)
+	    journal = new Journal(privilege, recordName, false);
+	else if (replayName != null)
+	    journal = new Journal(privilege, replayName, true);
+
 	timer = new Timer(privilege);
 
 	if (Config.getBoolean("Machine.bank"))
@@ -176,9 +233,24 @@ public final class Machine {
 	if (Config.getBoolean("Machine.processor")) {
 	    if (numPhysPages == -1)
 		numPhysPages = Config.getInteger("Processor.numPhysPages");
-	    processor = new Processor(privilege, numPhysPages);
+
+	    int count = Config.getInteger("Processor.count", 1);
+	    Lib.assertTrue(count >= 1, "bad value for Processor.count");
+	    // processors running in parallel don't replay in the same order
+	    Lib.assertTrue(count == 1 || journal == null,
+			   "cannot record or replay with more than one processor");
+
+	    processors = new Processor[count];
+	    processors[0] = new Processor(privilege, numPhysPages);
+	    for (int i=1; i<count; i++)
+		processors[i] = new Processor(privilege, processors[0]);
+
+	    processor = processors[0];
 	}				      
 
+	if (Config.getBoolean("Machine.profiler", false))
+	    profiler = new Profiler(privilege);
+
 	if (Config.getBoolean("Machine.console"))
 	    console = new StandardConsole(privilege);
 
@@ -322,7 +394,63 @@ public final class Machine {
      * @return	the MIPS processor, or <tt>null</tt> if it is not present.
      */     
     public static Processor processor() { return processor; }
+
+    /**
+     * Return the specified MIPS processor of a multiprocessor machine. The
+     * number of processors is set by <tt>Processor.count</tt>. All processors
+     * share the same physical memory, but each has its own registers and TLB.
+     *
+     * @param	cpu	the processor number, from 0 to
+     *			<tt>numProcessors()-1</tt>.
+     * @return	the MIPS processor.
+     */
+    public static Processor processor(int cpu) {
+	Lib.assertTrue(cpu >= 0 && cpu < numProcessors());
+	return processors[cpu];
+    }
+
+    /**
+     * Return the number of MIPS processors.
+     *
+     * @return	the number of processors, or 0 if there is no processor.
+     */
+    public static int numProcessors() {
+	return (processors == null) ? 0 : processors.length;
+    }
+
+    /**
+     * Make the specified processor the current one, which is returned by
+     * <tt>processor()</tt> and takes interrupts. Only one processor runs the
+     * kernel at a time, so the kernel calls this whenever a thread on a
+     * different processor gets the kernel.
+     *
+     * @param	cpu	the processor number.
+     */
+    public static void setCurrentProcessor(int cpu) {
+	processor = processor(cpu);
+    }
     
+    /**
+     * Return the privilege object, for machine classes that are not given
+     * one when they are created.
+     */
+    static Privilege privilege() { return privilege; }
+
+    /**
+     * Return the journal of non-deterministic inputs.
+     *
+     * @return	the journal, or <tt>null</tt> if this run is neither being
+     *		recorded nor replayed.
+     */
+    public static Journal journal() { return journal; }
+
+    /**
+     * Return the guest program profiler.
+     *
+     * @return	the profiler, or <tt>null</tt> if it is not enabled.
+     */
+    public static Profiler profiler() { return profiler; }
+
     /**
      * Return the hardware console.
      *
@@ -355,6 +483,9 @@ public final class Machine {
     private static Timer timer = null;
     private static ElevatorBank bank = null;
     private static Processor processor = null;
+    private static Processor[] processors = null;
+    private static Profiler profiler = null;
+    private static Journal journal = null;
     private static SerialConsole console = null;
     private static FileSystem stubFileSystem = null;
     private static NetworkLink networkLink = null;
@@ -436,7 +567,9 @@ public final class Machine {
 	"\t-x <program>\n" +
 	"\t\tSpecify a program that UserKernel.run() should execute,\n" +
 	"\t\tinstead of the value of the configuration variable\n" +
-	"\t\tKernel.shellProgram\n" +
+	"\t\tKernel.shellProgram. Cannot be used with\n" +
+	"\t\tKernel.restoreSnapshot, which restores the program that was\n" +
+	"\t\tloaded when the snapshot was saved\n" +
 	"\n" +
 	"\t-z\n" +
 	"\t\tprint the copyright message\n" +
@@ -106,13 +106,15 @@ public class NetworkLink {
 
 	System.out.print("(" + linkAddress + ")");
 
-	receiveInterrupt = new Runnable() {
-		public void run() { receiveInterrupt(); }
-	    };
+	receiveInterrupt =
+	    privilege.interrupt.createInterrupt("network recv", new Runnable() {
+		    public void run() { receiveInterrupt(); }
+		});
 
-	sendInterrupt = new Runnable() {
-		public void run() { sendInterrupt(); }
-	    };		
+	sendInterrupt =
+	    privilege.interrupt.createInterrupt("network send", new Runnable() {
+		    public void run() { sendInterrupt(); }
+		});
 	
 	scheduleReceiveInterrupt();
 
@@ -156,13 +158,24 @@ public class NetworkLink {
     }
 
     private void scheduleReceiveInterrupt() {
-	privilege.interrupt.schedule(Stats.NetworkTime, "network recv",
-				     receiveInterrupt);
+	privilege.interrupt.schedule(Stats.NetworkTime, receiveInterrupt);
     }
 
     private synchronized void receiveInterrupt() {
 	Lib.assertTrue(incomingPacket == null);
 
+	// a replayed run only sees the packets that arrived when it was
+	// recorded, and drops the live ones
+	Journal journal = Machine.journal();
+	if (journal != null) {
+	    byte[] liveBytes = incomingBytes;
+	    if (journal.isReplaying() && liveBytes != null) {
+		incomingBytes = null;
+		notify();
+	    }
+	    incomingBytes = journal.poll(Journal.network, liveBytes);
+	}
+
 	if (incomingBytes != null) {
 	    if (Machine.autoGrader().canReceivePacket(privilege)) {
 		try {
@@ -240,8 +253,7 @@ public class NetworkLink {
     }		
     
     private void scheduleSendInterrupt() {
-	privilege.interrupt.schedule(Stats.NetworkTime, "network send",
-				     sendInterrupt);
+	privilege.interrupt.schedule(Stats.NetworkTime, sendInterrupt);
     }
 
     private void sendInterrupt() {
@@ -309,8 +321,8 @@ public class NetworkLink {
 
     private Privilege privilege;
 
-    private Runnable receiveInterrupt;
-    private Runnable sendInterrupt;
+    private Interrupt.PendingInterrupt receiveInterrupt;
+    private Interrupt.PendingInterrupt sendInterrupt;
 
     private Runnable receiveInterruptHandler = null;
     private Runnable sendInterruptHandler = null;
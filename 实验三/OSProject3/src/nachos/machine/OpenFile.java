@@ -61,6 +61,22 @@ public class OpenFile {
 	return -1;
     }
     
+    /**
+     * Read this file like <tt>read()</tt>, but without taking any simulated
+     * time, for machine components such as the profiler that must not change
+     * the timing of what they observe. Files that cannot be read this way
+     * return -1.
+     *
+     * @param	pos	the offset in the file at which to start reading.
+     * @param	buf	the buffer to store the bytes in.
+     * @param	offset	the offset in the buffer to start storing bytes.
+     * @param	length	the number of bytes to read.
+     * @return	the actual number of bytes successfully read, or -1 on failure.
+     */
+    int readUncharged(int pos, byte[] buf, int offset, int length) {
+	return -1;
+    }
+
     /**
      * Write this file starting at the specified position and return the number
      * of bytes successfully written. If no bytes were written because of a
@@ -4,6 +4,18 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -16,6 +28,13 @@ import nachos.security.*;
  * can be shared by multiple user threads.
  *
  * <p>
+ * A machine can have several processors (see <tt>Processor.count</tt>). If
+ * the kernel sets kernel entry and exit handlers, a processor runs user code
+ * outside the kernel, on the host thread of the user thread it is running,
+ * so that the processors run user code in parallel while the kernel still
+ * runs on one host thread at a time (see <tt>setKernelHandlers()</tt>).
+ *
+ * <p>
  * An instance of a <tt>Processor</tt> also includes pages of physical memory
  * accessible to user programs, the size of which is fixed by the constructor.
  */
@@ -29,6 +48,24 @@ public final class Processor {
      *				attach.
      */
     public Processor(Privilege privilege, int numPhysPages) {
+	this(privilege, numPhysPages, null);
+    }
+
+    /**
+     * Allocate another MIPS processor for a multiprocessor machine. The new
+     * processor has its own registers and TLB, but shares physical memory
+     * with <i>memoryOwner</i>.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	memoryOwner	the processor whose physical memory to share.
+     */
+    public Processor(Privilege privilege, Processor memoryOwner) {
+	this(privilege, memoryOwner.numPhysPages, memoryOwner);
+    }
+
+    private Processor(Privilege privilege, int numPhysPages,
+		      Processor memoryOwner) {
 	System.out.print(" processor");
 
 	this.privilege = privilege;
@@ -39,13 +76,61 @@ public final class Processor {
 
 	usingTLB =
 	    (clsVMKernel != null && clsVMKernel.isAssignableFrom(clsKernel));
+
+	String engine = Config.getString("Processor.engine", "interpreter");
+	if (engine.equals("interpreter"))
+	    usingBlocks = false;
+	else if (engine.equals("blocks") || engine.equals("jit"))
+	    usingBlocks = true;
+	else
+	    Lib.assertNotReached("bad value for Processor.engine: " + engine);
+
+	usingJIT = engine.equals("jit");
+	Lib.assertTrue(!usingJIT || ClassAssembler.hasLoader());
+
+	// compiled blocks only run inside a batch of ticks
+	batchTicks = usingJIT || Config.getBoolean("Processor.batchTicks", false);
 	
 	this.numPhysPages = numPhysPages;
 
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	String memory = Config.getString("Processor.memory", "heap");
+	int memorySize = pageSize * numPhysPages;
+	if (memoryOwner != null) {
+	    mainMemory = memoryOwner.mainMemory;
+	    // a view of its own, since processors may run on different threads
+	    memoryView = memoryOwner.memoryView.duplicate();
+	}
+	else if (memory.equals("heap")) {
+	    mainMemory = new byte[memorySize];
+	    memoryView = ByteBuffer.wrap(mainMemory);
+	}
+	else if (memory.equals("direct")) {
+	    memoryView = ByteBuffer.allocateDirect(memorySize);
+	}
+	else if (memory.equals("mapped")) {
+	    memoryView = mapMemory(Config.getString("Processor.memoryFile"),
+				   memorySize);
+	}
+	else {
+	    Lib.assertNotReached("bad value for Processor.memory: " + memory);
+	}
+	memoryView.order(ByteOrder.LITTLE_ENDIAN);
+	traceAccesses = Lib.test(dbgProcessor);
+	instructionCounts = privilege.stats.numInstructions;
+	sliceTicks = Config.getInteger("Processor.sliceTicks", 10000);
+	Lib.assertTrue(sliceTicks > 0, "bad value for Processor.sliceTicks");
+
+	// each entry is checked against the word in memory before it is used,
+	// so each processor can decode into a cache of its own
+	decodeCache = new DecodedInstruction[numPhysPages][];
+
+	exceptions = new MipsException[exceptionNames.length];
+	for (int i=0; i<exceptions.length; i++)
+	    exceptions[i] = new MipsException(i);
+	blockCache = new BasicBlock[numPhysPages][];
 
 	if (usingTLB) {
 	    translations = new TranslationEntry[tlbSize];
@@ -80,6 +165,39 @@ public final class Processor {
     public Runnable getExceptionHandler() {
 	return exceptionHandler;
     }
+
+    /**
+     * Let this processor run user code outside the kernel, in parallel with
+     * the kernel and the other processors.
+     *
+     * <p>
+     * Each time the processor would run a user instruction after calling
+     * <tt>Interrupt.tick()</tt>, it calls <i>exitHandler</i>, with interrupts
+     * enabled. The handler must give the kernel to another thread without
+     * giving up this host thread, which then runs the number of instructions
+     * returned by <tt>getOutsideTicks()</tt> outside the kernel, or fewer if
+     * there is an exception. Then the processor calls <i>entryHandler</i>,
+     * which must wait until the thread has the kernel again and return with
+     * interrupts disabled. The ticks spent outside are accounted when the
+     * thread is back, on this processor's own host thread. A slice ends
+     * before the next interrupt pending when it starts is due, so the length
+     * of each slice, and the simulated time, only depend on the simulation.
+     *
+     * <p>
+     * Outside the kernel, the processor touches nothing shared but physical
+     * memory. It counts the instructions it runs by itself, and adds them to
+     * <tt>Stats</tt> when its thread is back in the kernel.
+     *
+     * @param	exitHandler	called to leave the kernel.
+     * @param	entryHandler	called to come back into the kernel.
+     */
+    public void setKernelHandlers(Runnable exitHandler, Runnable entryHandler) {
+	Lib.assertTrue(exitHandler != null && entryHandler != null);
+
+	kernelExitHandler = exitHandler;
+	kernelEntryHandler = entryHandler;
+	instructionCounts = new long[privilege.stats.numInstructions.length];
+    }
     
     /**
      * Start executing instructions at the current PC. Never returns.
@@ -91,18 +209,332 @@ public final class Processor {
 
 	Machine.autoGrader().runProcessor(privilege);
 
+	// the block engine does not trace, so debugging forces the interpreter
+	if (usingBlocks && !Lib.test(dbgProcessor) &&
+	    !Lib.test(dbgDisassemble) && !Lib.test(dbgFullDisassemble))
+	    runBlocks();
+
 	Instruction inst = new Instruction();
 	
 	while (true) {
 	    try {
 		inst.run();
+		instructionCounts[inst.decoded.opcode]++;
+	    }
+	    catch (MipsException e) {
+		endQuantum();
+		e.handle();
+	    }
+
+	    tick();
+	}
+    }
+
+    /**
+     * Advance the simulated time after executing a user instruction.
+     *
+     * <p>
+     * If <tt>Processor.batchTicks</tt> is set, the processor asks the
+     * interrupt controller how many instructions can run before an interrupt
+     * could become due, and runs that many without calling
+     * <tt>Interrupt.tick()</tt>. Their ticks are accounted in bulk when the
+     * quantum ends, or earlier if an exception has to be handled, so the
+     * simulated time seen by the kernel is the same as without batching.
+     */
+    private void tick() {
+	if (quantum > 0) {
+	    quantum--;
+	    deferredTicks++;
+	    return;
+	}
+
+	endQuantum();
+	privilege.interrupt.tick(false);
+
+	if (batchTicks)
+	    quantum = privilege.interrupt.userTicksUntilDue();
+
+	if (kernelExitHandler != null) {
+	    int slice = Math.min(sliceTicks,
+				 privilege.interrupt.userTicksUntilDue());
+	    if (slice > 0) {
+		quantum = slice;
+		outside = true;
+		kernelExitHandler.run();
+	    }
+	}
+    }
+
+    /**
+     * Return the number of instructions this processor runs outside the
+     * kernel once the exit handler set by <tt>setKernelHandlers()</tt>
+     * returns, unless an exception brings it back sooner. Only meaningful
+     * in the exit handler.
+     *
+     * @return	the length of the slice about to run outside the kernel.
+     */
+    public int getOutsideTicks() {
+	Lib.assertTrue(outside);
+
+	return quantum;
+    }
+
+    /**
+     * Account the ticks deferred by the current quantum and end it. Called
+     * before anything that can read the simulated time or switch threads.
+     * If the quantum ran outside the kernel, come back into it first.
+     */
+    private void endQuantum() {
+	int ticks = deferredTicks;
+	deferredTicks = 0;
+	quantum = 0;
+
+	if (outside) {
+	    kernelEntryHandler.run();
+	    outside = false;
+
+	    long[] counts = privilege.stats.numInstructions;
+	    for (int i=0; i<counts.length; i++) {
+		counts[i] += instructionCounts[i];
+		instructionCounts[i] = 0;
+	    }
+
+	    // the interrupts that came due may switch to another thread
+	    // using this processor, so the quantum must be over by now
+	    privilege.interrupt.tickOutside(ticks);
+	}
+	else if (ticks > 0) {
+	    privilege.interrupt.tickUser(ticks);
+	}
+    }
+
+    /**
+     * Execute instructions one basic block at a time. Never returns.
+     *
+     * <p>
+     * Each basic block is translated once into a chain of <tt>BlockOp</tt>
+     * closures, one per instruction, specialized for the instruction's
+     * operation and operands. The simulated time still advances after every
+     * instruction, and exceptions are delivered exactly as in <tt>run()</tt>.
+     *
+     * <p>
+     * If <tt>Processor.engine</tt> is <tt>jit</tt>, a block that has run
+     * <tt>jitThreshold</tt> times is also compiled into a JVM class, which
+     * HotSpot then compiles to native code. The compiled code keeps the
+     * registers in local variables and runs a loop back to the start of the
+     * block without leaving the class. It only runs when the rest of the
+     * current batch of ticks covers a whole pass over the block, so it
+     * accounts for its ticks in bulk; the JIT engine therefore always
+     * batches ticks.
+     */
+    private void runBlocks() {
+	while (true) {
+	    try {
+		runBlock();
 	    }
 	    catch (MipsException e) {
+		endQuantum();
 		e.handle();
+
+		tick();
+	    }
+	}
+    }
+
+    /**
+     * Execute the basic block starting at the current PC, and then, if the
+     * block is hot, keep executing the blocks it branches to for as long as
+     * they are on the same page.
+     *
+     * <p>
+     * The first instruction is fetched through <tt>translate()</tt>, like any
+     * other instruction. Before each following instruction, the engine checks
+     * that the interpreter would have fetched the same word: the PC must be
+     * where the engine expects it, the code page must still be mapped by the
+     * same translation entry, and the instruction word must not have changed.
+     * Otherwise this method returns, and the next call starts over at the
+     * current PC.
+     *
+     * <p>
+     * A hot block remembers the blocks that followed it, so a loop that fits
+     * in one page runs entirely inside this method, without going through
+     * <tt>translate()</tt> or the block cache.
+     *
+     * @exception	MipsException	if an instruction caused an exception.
+     */
+    private void runBlock() throws MipsException {
+	int pc = registers[regPC];
+	int paddr = translate(pc, 4, false, true);
+
+	TranslationEntry entry = lastTranslation;
+	TranslationEntry[] table = translations;
+	int generation = translationGeneration;
+	int vpn = pageFromAddress(pc);
+	int ppn = entry.ppn;
+
+	BasicBlock block = blockAt(paddr);
+	boolean fetched = true;
+
+	while (true) {
+	    BlockOp[] ops = block.ops;
+	    int start = pc;
+
+	    for (int i=0; i<ops.length; ) {
+		if (!fetched) {
+		    if (registers[regPC] != pc ||
+			translationGeneration != generation ||
+			translations != table ||
+			(!usingTLB && table[vpn] != entry) ||
+			!entry.valid || entry.ppn != ppn)
+			return;
+
+		    if (memoryView.getInt(paddr) != ops[i].value) {
+			discardBlock(block);
+			return;
+		    }
+
+		    entry.used = true;
+		}
+		fetched = false;
+
+		if (i == 0 && block.code != null && enterCode(block)) {
+		    // compiled code counts its instructions and ticks itself
+		    int done = block.code.run(quantum);
+
+		    i += done;
+		    pc += done*4;
+		    paddr += done*4;
+		    continue;
+		}
+
+		ops[i].run();
+		instructionCounts[ops[i].decoded.opcode]++;
+
+		tick();
+
+		i++;
+		pc += 4;
+		paddr += 4;
 	    }
 
-	    privilege.interrupt.tick(false);
+	    if (++block.executions == jitThreshold && usingJIT)
+		block.code = compileBlock(block, start);
+
+	    if (block.executions < hotBlockThreshold)
+		return;
+
+	    // chain to the next block if it is on the same page
+	    pc = registers[regPC];
+	    if (pageFromAddress(pc) != vpn || (pc & 3) != 0)
+		return;
+
+	    paddr = ppn*pageSize + offsetFromAddress(pc);
+	    block = block.successor(paddr);
+	}
+    }
+
+    /**
+     * Test whether the compiled code of a block can run now. It must be
+     * entered at the virtual address it was compiled for, with enough of the
+     * quantum left for a full pass, and its instructions must not have
+     * changed. If it can run, the delayed load in progress is completed
+     * first, unless the first instruction reads the register being loaded.
+     *
+     * @param	block	the block to test.
+     * @return	<tt>true</tt> if <tt>block.code.run()</tt> can be called.
+     */
+    private boolean enterCode(BasicBlock block) {
+	CompiledBlock code = block.code;
+
+	if (quantum < code.length || registers[regPC] != code.vaddr ||
+	    registers[regNextPC] != code.vaddr+4)
+	    return false;
+
+	if (loadTarget != 0 && (code.firstSources & (1L << loadTarget)) != 0)
+	    return false;
+
+	for (int i=0; i<code.length; i++) {
+	    if (memoryView.getInt(block.paddr + i*4) != block.ops[i].value)
+		return false;
+	}
+
+	finishLoad();
+	return true;
+    }
+
+    /**
+     * Translate a hot basic block into bytecode.
+     *
+     * @param	block	the block to translate.
+     * @param	vaddr	the virtual address the block was reached at.
+     * @return	the compiled block, or <tt>null</tt> if too little of the
+     *		block can be compiled.
+     */
+    private CompiledBlock compileBlock(BasicBlock block, int vaddr) {
+	BlockCompiler compiler = new BlockCompiler(block.ops, vaddr);
+	if (compiler.length < 2)
+	    return null;
+
+	CompiledBlock code = null;
+	try {
+	    code = (CompiledBlock) compiler.assemble()
+		.getConstructor(Processor.class).newInstance(this);
+	}
+	catch (Exception e) {
+	    Lib.assertNotReached("could not compile block at 0x" +
+				 Lib.toHexString(vaddr) + ": " + e);
+	}
+
+	code.vaddr = vaddr;
+	code.start = block.paddr;
+	code.end = block.paddr + compiler.length*4;
+	code.length = compiler.length;
+	code.firstSources = compiler.firstSources();
+
+	return code;
+    }
+
+    /**
+     * Return the basic block starting at the specified physical address,
+     * translating it if it is not already cached or if its first instruction
+     * has changed.
+     *
+     * @param	paddr	the word-aligned physical address of the block.
+     * @return	the basic block.
+     */
+    private BasicBlock blockAt(int paddr) {
+	int ppn = paddr / pageSize;
+	int index = (paddr % pageSize) / 4;
+
+	BasicBlock[] page = blockCache[ppn];
+	if (page == null) {
+	    page = new BasicBlock[pageSize / 4];
+	    blockCache[ppn] = page;
+	}
+
+	BasicBlock block = page[index];
+	if (block == null || !block.isCurrent()) {
+	    block = new BasicBlock(paddr);
+	    page[index] = block;
 	}
+
+	return block;
+    }
+
+    /**
+     * Remove a basic block containing a stale instruction from the block
+     * cache.
+     *
+     * @param	block	the block to remove.
+     */
+    private void discardBlock(BasicBlock block) {
+	BasicBlock[] page = blockCache[block.paddr / pageSize];
+	int index = (block.paddr % pageSize) / 4;
+
+	if (page[index] == block)
+	    page[index] = null;
+
+	block.discarded = true;
     }
 
     /**
@@ -175,6 +607,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	translationGeneration++;
     }
 
     /**
@@ -216,6 +649,66 @@ public final class Processor {
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
 	translations[number] = new TranslationEntry(entry);
+	translationGeneration++;
+    }
+
+    /**
+     * Write the registers and, if there is one, the TLB to a snapshot.
+     */
+    void saveSnapshot(DataOutputStream out) throws IOException {
+	for (int i=0; i<numUserRegisters; i++)
+	    out.writeInt(registers[i]);
+
+	if (usingTLB) {
+	    for (int i=0; i<tlbSize; i++)
+		Snapshot.writeEntry(out, translations[i]);
+	}
+    }
+
+    /**
+     * Restore the registers and TLB saved by <tt>saveSnapshot()</tt>. Any
+     * delayed load or ll reservation is forgotten.
+     */
+    void restoreSnapshot(DataInputStream in) throws IOException {
+	for (int i=0; i<numUserRegisters; i++)
+	    registers[i] = in.readInt();
+
+	if (usingTLB) {
+	    for (int i=0; i<tlbSize; i++)
+		translations[i] = Snapshot.readEntry(in);
+	}
+
+	loadTarget = 0;
+	reservation = -1;
+	translationGeneration++;
+    }
+
+    /**
+     * Write the contents of physical memory to a snapshot.
+     */
+    void saveMemory(DataOutputStream out) throws IOException {
+	ByteBuffer view = memoryView.duplicate();
+	byte[] page = new byte[pageSize];
+
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    view.get(page);
+	    out.write(page);
+	}
+    }
+
+    /**
+     * Replace the contents of physical memory with those saved by
+     * <tt>saveMemory()</tt>. Cached decodings of the old contents are
+     * noticed as stale when they are next used.
+     */
+    void restoreMemory(DataInputStream in) throws IOException {
+	ByteBuffer view = memoryView.duplicate();
+	byte[] page = new byte[pageSize];
+
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    in.readFully(page);
+	    view.put(page);
+	}
     }
 
     /**
@@ -232,12 +725,124 @@ public final class Processor {
      * Return a reference to the physical memory array. The size of this array
      * is <tt>pageSize * getNumPhysPages()</tt>.
      *
+     * <p>
+     * The array only exists if physical memory is on the Java heap
+     * (<tt>Processor.memory = heap</tt>, the default). Code that should work
+     * with any kind of physical memory should use <tt>readMemory()</tt>,
+     * <tt>writeMemory()</tt> and <tt>zeroMemory()</tt> instead.
+     *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
+	Lib.assertTrue(mainMemory != null, "physical memory is not on the heap");
+
 	return mainMemory;
     }
 
+    /**
+     * Copy bytes from physical memory into an array.
+     *
+     * @param	paddr	the physical address of the first byte to copy.
+     * @param	data	the array to copy into.
+     * @param	offset	the first index of <i>data</i> to write.
+     * @param	length	the number of bytes to copy.
+     */
+    public void readMemory(int paddr, byte[] data, int offset, int length) {
+	checkPhysicalRange(paddr, length);
+
+	if (mainMemory != null) {
+	    System.arraycopy(mainMemory, paddr, data, offset, length);
+	}
+	else {
+	    ByteBuffer buffer = memoryView.duplicate();
+	    buffer.position(paddr);
+	    buffer.get(data, offset, length);
+	}
+    }
+
+    /**
+     * Copy bytes from an array into physical memory.
+     *
+     * @param	paddr	the physical address of the first byte to write.
+     * @param	data	the array to copy from.
+     * @param	offset	the first index of <i>data</i> to read.
+     * @param	length	the number of bytes to copy.
+     */
+    public void writeMemory(int paddr, byte[] data, int offset, int length) {
+	checkPhysicalRange(paddr, length);
+
+	if (mainMemory != null) {
+	    System.arraycopy(data, offset, mainMemory, paddr, length);
+	}
+	else {
+	    ByteBuffer buffer = memoryView.duplicate();
+	    buffer.position(paddr);
+	    buffer.put(data, offset, length);
+	}
+    }
+
+    /**
+     * Fill a range of physical memory with zeros.
+     *
+     * @param	paddr	the physical address of the first byte to clear.
+     * @param	length	the number of bytes to clear.
+     */
+    public void zeroMemory(int paddr, int length) {
+	checkPhysicalRange(paddr, length);
+
+	if (mainMemory != null) {
+	    Arrays.fill(mainMemory, paddr, paddr+length, (byte) 0);
+	}
+	else {
+	    for (int i=0; i<length; i++)
+		memoryView.put(paddr+i, (byte) 0);
+	}
+    }
+
+    /**
+     * Assert that a range of physical addresses lies within main memory.
+     */
+    private void checkPhysicalRange(int paddr, int length) {
+	Lib.assertTrue(paddr >= 0 && length >= 0 &&
+		       paddr+length <= pageSize*numPhysPages);
+    }
+
+    /**
+     * Map a file as physical memory, creating or extending it as needed. An
+     * existing file keeps its contents, so a memory image can be shared
+     * between runs.
+     *
+     * @param	fileName	the name of the file to map.
+     * @param	size		the size of physical memory.
+     * @return	a buffer mapping the file.
+     */
+    private ByteBuffer mapMemory(final String fileName, final int size) {
+	Lib.assertTrue(fileName != null,
+		       "Processor.memoryFile is required for mapped memory");
+
+	try {
+	    return (ByteBuffer) privilege.doPrivileged(
+		new PrivilegedExceptionAction() {
+		    public Object run() throws IOException {
+			RandomAccessFile file =
+			    new RandomAccessFile(fileName, "rw");
+			try {
+			    return file.getChannel().map(
+				FileChannel.MapMode.READ_WRITE, 0, size);
+			}
+			finally {
+			    file.close();
+			}
+		    }
+		});
+	}
+	catch (PrivilegedActionException e) {
+	    Lib.assertNotReached("unable to map " + fileName + ": " +
+				 e.getException());
+	    return null;
+	}
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -275,6 +880,40 @@ public final class Processor {
 	return (int) (((long) address & 0xFFFFFFFFL) % pageSize);
     }
 
+    /**
+     * Return the decoded form of the instruction stored at the specified
+     * physical address, decoding it only if it is not already cached.
+     *
+     * <p>
+     * Each cache entry is tagged with the raw instruction word it was decoded
+     * from, so any change to that word (a store by <tt>writeMem()</tt>, a
+     * page loaded by <tt>CoffSection.loadPage()</tt> or swapped in, or any
+     * other write through <tt>getMemory()</tt>) invalidates the entry.
+     *
+     * @param	paddr	the word-aligned physical address of the instruction.
+     * @return	the decoded instruction.
+     */
+    private DecodedInstruction decodeAt(int paddr) {
+	int value = memoryView.getInt(paddr);
+
+	int ppn = paddr / pageSize;
+	int index = (paddr % pageSize) / 4;
+
+	DecodedInstruction[] page = decodeCache[ppn];
+	if (page == null) {
+	    page = new DecodedInstruction[pageSize / 4];
+	    decodeCache[ppn] = page;
+	}
+
+	DecodedInstruction decoded = page[index];
+	if (decoded == null || decoded.value != value) {
+	    decoded = new DecodedInstruction(value);
+	    page[index] = decoded;
+	}
+
+	return decoded;
+    }
+
     private void finishLoad() {
 	delayedLoad(0, 0, 0);
     }
@@ -289,65 +928,62 @@ public final class Processor {
      * @param	vaddr	the virtual address to translate.
      * @param	size	the size of the memory reference (must be 1, 2, or 4).
      * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @param	fetching	<tt>true</tt> if the memory reference is an
+     *				instruction fetch.
      * @return		the physical address.
      * @exception	MipsException	if a translation error occurred.
      */
-    private int translate(int vaddr, int size, boolean writing)
-	throws MipsException {
-	if (Lib.test(dbgProcessor))
+    private int translate(int vaddr, int size, boolean writing,
+			  boolean fetching) throws MipsException {
+	if (traceAccesses)
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
 
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
 	    Lib.debug(dbgProcessor, "\t\talignment error");
-	    throw new MipsException(exceptionAddressError, vaddr);
+	    throw trap(exceptionAddressError, vaddr);
 	}
 
 	// calculate virtual page number and offset from the virtual address
 	int vpn = pageFromAddress(vaddr);
 	int offset = offsetFromAddress(vaddr);
 
-	TranslationEntry entry = null;
-
-	// if not using a TLB, then the vpn is an index into the table
-	if (!usingTLB) {
-	    if (translations == null || vpn >= translations.length ||
-		translations[vpn] == null ||
-		!translations[vpn].valid) {
-		privilege.stats.numPageFaults++;
-		Lib.debug(dbgProcessor, "\t\tpage fault");
-		throw new MipsException(exceptionPageFault, vaddr);
+	TranslationEntry entry;
+
+	// instruction fetches and data accesses each reuse their last entry
+	if (fetching) {
+	    entry = fetchEntry;
+	    if (fetchVPN != vpn || fetchGeneration != translationGeneration ||
+		!isCurrentTranslation(vpn, entry)) {
+		entry = lookupTranslation(vaddr, vpn);
+		fetchEntry = entry;
+		fetchVPN = vpn;
+		fetchGeneration = translationGeneration;
 	    }
-
-	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
-		    entry = translations[i];
-		    break;
-		}
-	    }
-	    if (entry == null) {
-		privilege.stats.numTLBMisses++;
-		Lib.debug(dbgProcessor, "\t\tTLB miss");
-		throw new MipsException(exceptionTLBMiss, vaddr);
+	    entry = dataEntry;
+	    if (dataVPN != vpn || dataGeneration != translationGeneration ||
+		!isCurrentTranslation(vpn, entry)) {
+		entry = lookupTranslation(vaddr, vpn);
+		dataEntry = entry;
+		dataVPN = vpn;
+		dataGeneration = translationGeneration;
 	    }
 	}
 
 	// check if trying to write a read-only page
 	if (entry.readOnly && writing) {
 	    Lib.debug(dbgProcessor, "\t\tread-only exception");
-	    throw new MipsException(exceptionReadOnly, vaddr);
+	    throw trap(exceptionReadOnly, vaddr);
 	}
 
 	// check if physical page number is out of range
 	int ppn = entry.ppn;
 	if (ppn < 0 || ppn >= numPhysPages) {
 	    Lib.debug(dbgProcessor, "\t\tbad ppn");
-	    throw new MipsException(exceptionBusError, vaddr);
+	    throw trap(exceptionBusError, vaddr);
 	}
 
 	// set used and dirty bits as appropriate
@@ -356,32 +992,135 @@ public final class Processor {
 	    entry.dirty = true;
 
 	int paddr = (ppn*pageSize) + offset;
+	lastTranslation = entry;
 
-	if (Lib.test(dbgProcessor))
+	if (traceAccesses)
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
 	return paddr;
     }
 
     /**
-     * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
-     * and return the result.
+     * Find the translation entry for a virtual page, by indexing the page
+     * table or by searching the TLB.
      *
-     * @param	vaddr	the virtual address to read from.
-     * @param	size	the number of bytes to read (1, 2, or 4).
-     * @return		the value read.
-     * @exception	MipsException	if a translation error occurred.
+     * @param	vaddr	the virtual address being translated.
+     * @param	vpn	the virtual page number of <i>vaddr</i>.
+     * @return	the valid translation entry for <i>vpn</i>.
+     * @exception	MipsException	if there is no valid translation.
      */
-    private int readMem(int vaddr, int size) throws MipsException {
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
-			       + ", size=" + size);
-
-	Lib.assertTrue(size==1 || size==2 || size==4);
-	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+    private TranslationEntry lookupTranslation(int vaddr, int vpn)
+	throws MipsException {
+	// if not using a TLB, then the vpn is an index into the table
+	if (!usingTLB) {
+	    if (translations == null || vpn >= translations.length ||
+		translations[vpn] == null ||
+		!translations[vpn].valid) {
+		Lib.debug(dbgProcessor, "\t\tpage fault");
+		throw trap(exceptionPageFault, vaddr);
+	    }
+
+	    return translations[vpn];
+	}
+	// else, look through all TLB entries for matching vpn
+	else {
+	    for (int i=0; i<tlbSize; i++) {
+		if (translations[i].valid && translations[i].vpn == vpn)
+		    return translations[i];
+	    }
+
+	    Lib.debug(dbgProcessor, "\t\tTLB miss");
+	    throw trap(exceptionTLBMiss, vaddr);
+	}
+    }
+
+    /**
+     * Test whether a translation entry found by an earlier lookup of the same
+     * virtual page, with no TLB write or page table switch since, would still
+     * be returned by <tt>lookupTranslation()</tt>. TLB entries can only change
+     * through <tt>writeTLBEntry()</tt>, but a page table belongs to the kernel,
+     * so its slot and valid bit must be checked again.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	entry	the entry found by the earlier lookup.
+     * @return	<tt>true</tt> if <i>entry</i> is still the translation.
+     */
+    private boolean isCurrentTranslation(int vpn, TranslationEntry entry) {
+	if (entry == null)
+	    return false;
+	if (usingTLB)
+	    return true;
+
+	return translations[vpn] == entry && entry.valid;
+    }
+
+    /**
+     * Read a word of virtual memory without any of the side effects of a real
+     * access: no exception is raised, no statistics are counted, and the used
+     * bit is left alone. The profiler uses this to walk the user stack.
+     *
+     * @param	vaddr	the virtual address to read from.
+     * @return	the word read, or -1 if <i>vaddr</i> is unaligned or has no
+     *		valid translation.
+     */
+    long peekWord(int vaddr) {
+	if ((vaddr & 0x3) != 0 || translations == null)
+	    return -1;
+
+	int vpn = pageFromAddress(vaddr);
+	TranslationEntry entry = null;
+
+	if (!usingTLB) {
+	    if (vpn < translations.length)
+		entry = translations[vpn];
+	}
+	else {
+	    for (int i=0; i<tlbSize; i++) {
+		if (translations[i].valid && translations[i].vpn == vpn)
+		    entry = translations[i];
+	    }
+	}
+
+	if (entry == null || !entry.valid ||
+	    entry.ppn < 0 || entry.ppn >= numPhysPages)
+	    return -1;
+
+	return memoryView.getInt(entry.ppn*pageSize + offsetFromAddress(vaddr))
+	    & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
+     * and return the result.
+     *
+     * @param	vaddr	the virtual address to read from.
+     * @param	size	the number of bytes to read (1, 2, or 4).
+     * @return		the value read.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int readMem(int vaddr, int size) throws MipsException {
+	if (traceAccesses)
+	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
+			       + ", size=" + size);
+
+	int paddr = translate(vaddr, size, false, false);
+	int value;
+
+	switch (size) {
+	case 4:
+	    value = memoryView.getInt(paddr);
+	    break;
+	case 2:
+	    value = memoryView.getShort(paddr);
+	    break;
+	case 1:
+	    value = memoryView.get(paddr);
+	    break;
+	default:
+	    Lib.assertNotReached("bad memory access size: " + size);
+	    return 0;
+	}
 
-	if (Lib.test(dbgProcessor))
+	if (traceAccesses)
 	    System.out.println("\t\tvalue read=0x" +
 			       Lib.toHexString(value, size*2));
 	
@@ -399,15 +1138,79 @@ public final class Processor {
      */
     private void writeMem(int vaddr, int size, int value)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (traceAccesses)
 	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size + ", value=0x"
 			       + Lib.toHexString(value, size*2));
 
-	Lib.assertTrue(size==1 || size==2 || size==4);
-	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	int paddr = translate(vaddr, size, true, false);
+
+	if ((paddr & ~0x3) == reservation)
+	    reservation = -1;
+
+	switch (size) {
+	case 4:
+	    memoryView.putInt(paddr, value);
+	    break;
+	case 2:
+	    memoryView.putShort(paddr, (short) value);
+	    break;
+	case 1:
+	    memoryView.put(paddr, (byte) value);
+	    break;
+	default:
+	    Lib.assertNotReached("bad memory access size: " + size);
+	}
+    }
+
+    /**
+     * Read a word of virtual memory for an <tt>ll</tt> instruction, and
+     * reserve the physical word for a following <tt>sc</tt>.
+     *
+     * @param	vaddr	the virtual address to read from.
+     * @return	the value read.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int loadLinked(int vaddr) throws MipsException {
+	int value = readMem(vaddr, 4);
+
+	reservation = lastTranslation.ppn*pageSize + offsetFromAddress(vaddr);
+
+	return value;
+    }
+
+    /**
+     * Write a word of virtual memory for an <tt>sc</tt> instruction, if the
+     * word is still reserved by the last <tt>ll</tt>. Either way, the
+     * reservation is cleared.
+     *
+     * @param	vaddr	the virtual address to write to.
+     * @param	value	the value to store.
+     * @return	<tt>true</tt> if the value was stored.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private boolean storeConditional(int vaddr, int value)
+	throws MipsException {
+	int reserved = reservation;
+	reservation = -1;
+
+	if (reserved == -1)
+	    return false;
+
+	// compare with a read translation, so that an sc that fails does not
+	// mark the page dirty, and store through the same translation
+	int paddr = translate(vaddr, 4, false, false);
+	if (paddr != reserved)
+	    return false;
+
+	if (lastTranslation.readOnly) {
+	    Lib.debug(dbgProcessor, "\t\tread-only exception");
+	    throw trap(exceptionReadOnly, vaddr);
+	}
+	lastTranslation.dirty = true;
+
+	memoryView.putInt(paddr, value);
+	return true;
     }
 
     /**
@@ -463,6 +1266,64 @@ public final class Processor {
 	registers[regNextPC] = nextPC;
     }
 
+    /**
+     * Complete a non-branching instruction that writes a register: finish the
+     * delayed load in progress, write the result, and advance the PC. Used by
+     * the block engine.
+     *
+     * @param	dstReg	the destination register.
+     * @param	result	the value to write into the destination register.
+     */
+    private void retire(int dstReg, int result) {
+	finishLoad();
+
+	if (dstReg != 0)
+	    registers[dstReg] = result;
+
+	advancePC(registers[regNextPC]+4);
+    }
+
+    /**
+     * Complete a non-branching instruction that does not write a register.
+     * Used by the block engine.
+     */
+    private void retire() {
+	finishLoad();
+
+	advancePC(registers[regNextPC]+4);
+    }
+
+    /**
+     * Complete a branch or jump instruction. Used by the block engine.
+     *
+     * @param	taken	<tt>true</tt> if the branch is taken.
+     * @param	target	the branch target.
+     */
+    private void branch(boolean taken, int target) {
+	int nextPC = taken ? target : registers[regNextPC]+4;
+
+	finishLoad();
+
+	advancePC(nextPC);
+    }
+
+    /**
+     * Complete a jump-and-link instruction. Used by the block engine.
+     *
+     * @param	dstReg	the register that receives the return address.
+     * @param	target	the jump target.
+     */
+    private void jumpAndLink(int dstReg, int target) {
+	int nextPC = registers[regNextPC]+4;
+
+	finishLoad();
+
+	if (dstReg != 0)
+	    registers[dstReg] = nextPC;
+
+	advancePC(target);
+    }
+
     /** Caused by a syscall instruction. */
     public static final int exceptionSyscall = 0;
     /** Caused by an access to an invalid virtual page. */
@@ -521,6 +1382,9 @@ public final class Processor {
     /** Index of the exception bad virtual address register. */
     public static final int regBadVAddr = 37;
 
+    /** The number of distinct opcodes, counting special and reg-imm ones. */
+    public static final int numOpcodes = 64 + 64 + 32;
+
     /** The total number of software-accessible CPU registers. */
     public static final int numUserRegisters = 38;
 
@@ -546,6 +1410,66 @@ public final class Processor {
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
+    /**
+     * Incremented whenever the TLB or the page table pointer changes, so the
+     * block engine can tell when a fetch translation must be redone.
+     */
+    private int translationGeneration = 0;
+    /**
+     * The last entry used to translate an instruction fetch, the virtual page
+     * it translated, and the translation generation it was found in. The
+     * entry is <tt>null</tt> until the first fetch.
+     */
+    private TranslationEntry fetchEntry = null;
+    private int fetchVPN = -1, fetchGeneration = -1;
+    /** The same, for data loads and stores. */
+    private TranslationEntry dataEntry = null;
+    private int dataVPN = -1, dataGeneration = -1;
+    /** The translation entry used by the last successful translation. */
+    private TranslationEntry lastTranslation = null;
+
+    /** <tt>true</tt> if executing basic blocks instead of interpreting. */
+    private boolean usingBlocks;
+    /**
+     * Translated basic blocks, indexed by physical page number and then by
+     * the word within the page at which the block starts.
+     */
+    private BasicBlock[][] blockCache;
+    /**
+     * The number of times a block must run to completion before the block
+     * engine chains it directly to the blocks that follow it.
+     */
+    private static final int hotBlockThreshold = 16;
+    /** <tt>true</tt> if hot basic blocks are compiled into bytecode. */
+    private boolean usingJIT;
+    /**
+     * The number of times a block must run to completion before the JIT
+     * engine compiles it.
+     */
+    private static final int jitThreshold = 32;
+    /** <tt>true</tt> if user ticks are accounted in bulk. */
+    private boolean batchTicks;
+    /**
+     * The number of instructions that can still execute before
+     * <tt>Interrupt.tick()</tt> must be called.
+     */
+    private int quantum = 0;
+    /** The number of user ticks not yet reported to the interrupt controller. */
+    private int deferredTicks = 0;
+
+    /**
+     * The physical address of the word reserved by the last <tt>ll</tt>, or
+     * -1 if there is none. Cleared by <tt>sc</tt>, by any store to the word,
+     * and whenever an exception or interrupt is taken, which is the only way
+     * another thread or processor can run in between.
+     */
+    private int reservation = -1;
+
+    /** The exception object thrown for each cause. */
+    private MipsException[] exceptions;
+
+    /** Executes instructions that the block engine does not specialize. */
+    private Instruction blockInterpreter = new Instruction();
 
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
@@ -553,11 +1477,49 @@ public final class Processor {
     public static final int maxPages = (int) (0x100000000L / pageSize);
     /** Number of physical pages in memory. */
     private int numPhysPages;
-    /** Main memory for user programs. */
-    private byte[] mainMemory;
+    /**
+     * Main memory for user programs, if it is on the Java heap. Otherwise
+     * <tt>null</tt>.
+     */
+    private byte[] mainMemory = null;
+    /**
+     * Main memory for user programs, as a little-endian buffer. It either
+     * wraps <tt>mainMemory</tt>, or is a direct or file-mapped buffer outside
+     * the Java heap. Loads and stores use it to access whole halfwords and
+     * words instead of assembling them byte by byte.
+     */
+    private ByteBuffer memoryView;
+    /**
+     * <tt>true</tt> if memory accesses are traced. Debug flags are fixed
+     * before the processor is created, so this is tested once here instead
+     * of on every access.
+     */
+    private final boolean traceAccesses;
+    /**
+     * The per-opcode instruction counters, from <tt>Stats</tt>, or this
+     * processor's own if it runs outside the kernel.
+     */
+    private long[] instructionCounts;
+    /**
+     * Decoded instructions, indexed by physical page number and then by word
+     * within the page. Pages are allocated the first time code is fetched
+     * from them.
+     */
+    private DecodedInstruction[][] decodeCache;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
+    /** Called to leave the kernel, or <tt>null</tt> to stay in it. */
+    private Runnable kernelExitHandler = null;
+    /** Called to come back into the kernel. */
+    private Runnable kernelEntryHandler = null;
+    /**
+     * <tt>true</tt> while this processor runs outside the kernel. Written by
+     * the processor's own host thread and read by the one holding the kernel.
+     */
+    private volatile boolean outside = false;
+    /** The number of instructions to run outside the kernel at a time. */
+    private final int sliceTicks;
 
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
@@ -565,12 +1527,55 @@ public final class Processor {
 
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
-	    finishLoad();
+	    // interrupts are taken by whichever processor is running, unless
+	    // its thread has left the kernel and the processor is not ours
+	    Processor processor = Machine.processor();
+	    if (processor.outside)
+		return;
+
+	    processor.finishLoad();
+
+	    // and may switch threads, so the reservation can't survive them
+	    processor.reservation = -1;
 	}
     }
 
+    /**
+     * Return the exception object for the specified cause, with no bad
+     * virtual address. Exceptions are thrown for every syscall and TLB miss,
+     * so one object per cause is allocated up front and reused. This is safe
+     * because <tt>handle()</tt> copies the cause and bad virtual address into
+     * registers before it calls the kernel.
+     *
+     * @param	cause	the cause of the exception.
+     * @return	the exception to throw.
+     */
+    private MipsException trap(int cause) {
+	MipsException e = exceptions[cause];
+	e.hasBadVAddr = false;
+	return e;
+    }
+
+    /**
+     * Return the exception object for the specified cause, with the
+     * specified bad virtual address.
+     *
+     * @param	cause		the cause of the exception.
+     * @param	badVAddr	the virtual address that caused the exception.
+     * @return	the exception to throw.
+     */
+    private MipsException trap(int cause, int badVAddr) {
+	MipsException e = exceptions[cause];
+	e.hasBadVAddr = true;
+	e.badVAddr = badVAddr;
+	return e;
+    }
+
     private class MipsException extends Exception {
 	public MipsException(int cause) {
+	    // only used for control flow, so don't capture a stack trace
+	    super(null, null, false, false);
+
 	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
 	    this.cause = cause;
@@ -584,6 +1589,16 @@ public final class Processor {
 	}
 
 	public void handle() {
+	    // like eret, the kernel's return from an exception breaks ll/sc
+	    reservation = -1;
+
+	    // counted here, in the kernel, rather than where they are raised
+	    privilege.stats.numExceptions[cause]++;
+	    if (cause == exceptionPageFault)
+		privilege.stats.numPageFaults++;
+	    else if (cause == exceptionTLBMiss)
+		privilege.stats.numTLBMisses++;
+
 	    writeRegister(regCause, cause);
 
 	    if (hasBadVAddr)
@@ -599,8 +1614,24 @@ public final class Processor {
 	    // autograder might not want kernel to know about this exception
 	    if (!Machine.autoGrader().exceptionHandler(privilege))
 		return;
-	    
+
+	    if (cause != exceptionSyscall) {
+		exceptionHandler.run();
+		return;
+	    }
+
+	    // charge the kernel time spent on a syscall to its number
+	    Stats stats = privilege.stats;
+	    int number = registers[regV0];
+	    if (number < 0 || number >= Stats.maxSyscalls)
+		number = Stats.maxSyscalls;
+
+	    stats.numSyscalls[number]++;
+	    long startTicks = stats.kernelTicks;
+
 	    exceptionHandler.run();
+
+	    stats.syscallTicks[number] += stats.kernelTicks - startTicks;
 	}
 
 	private boolean hasBadVAddr = false;
@@ -616,6 +1647,19 @@ public final class Processor {
 	    writeBack();
 	}	
 
+	/**
+	 * Execute an instruction that has already been fetched and decoded by
+	 * the block engine.
+	 */
+	public void run(DecodedInstruction decoded) throws MipsException {
+	    this.decoded = decoded;
+	    value = decoded.value;
+
+	    decode();
+	    execute();
+	    writeBack();
+	}
+
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
@@ -626,78 +1670,54 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    if (traceAccesses)
+		System.out.println("\treadMem vaddr=0x" +
+				   Lib.toHexString(registers[regPC]) +
+				   ", size=4");
+
+	    decoded = decodeAt(translate(registers[regPC], 4, false, true));
+	    value = decoded.value;
+
+	    if (traceAccesses)
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
-
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    // copy the register-independent fields from the decode cache
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
 	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
-
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + decoded.branchOffset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -869,7 +1889,7 @@ public final class Processor {
 			throw new ArithmeticException();
 		}
 		catch (ArithmeticException e) {
-		    throw new MipsException(exceptionOverflow);
+		    throw trap(exceptionOverflow);
 		}
 		break;
 
@@ -939,7 +1959,7 @@ public final class Processor {
 		break;
 
 	    case Mips.SYSCALL:
-		throw new MipsException(exceptionSyscall);
+		throw trap(exceptionSyscall);
 
 	    case Mips.LOAD:
 		value = readMem(addr, size);
@@ -977,6 +1997,14 @@ public final class Processor {
 		writeMem(addr, size, (int) src2);
 		break;
 
+	    case Mips.LL:
+		dst = loadLinked(addr);
+		break;
+
+	    case Mips.SC:
+		dst = storeConditional(addr, (int) src2) ? 1 : 0;
+		break;
+
 	    case Mips.SWL:
 		value = readMem(addr&~0x3, 4);
 
@@ -1009,7 +2037,7 @@ public final class Processor {
 		System.err.println("Warning: encountered unimplemented inst");
 		
 	    case Mips.INVALID:
-		throw new MipsException(exceptionIllegalInstruction);
+		throw trap(exceptionIllegalInstruction);
 
 	    default:
 		Lib.assertNotReached();
@@ -1019,7 +2047,7 @@ public final class Processor {
 	private void writeBack() throws MipsException {
 	    // if instruction is signed, but carry bit !+ sign bit, throw
 	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32))
-		throw new MipsException(exceptionOverflow);
+		throw trap(exceptionOverflow);
 
 	    if (test(Mips.DELAYEDLOAD))
 		delayedLoad(dstReg, (int) dst, mask);
@@ -1052,6 +2080,7 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
+	DecodedInstruction decoded;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,6 +2092,1313 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * Return the index of an instruction in the opcode tables, which is the
+     * index used by <tt>Stats.numInstructions</tt>. Opcodes are numbered from
+     * the main table, then the special table, then the reg-imm table.
+     */
+    private static int opcodeIndex(int op, int func, int rt) {
+	switch (op) {
+	case 0:
+	    return Mips.optable.length + func;
+	case 1:
+	    return Mips.optable.length + Mips.specialtable.length + rt;
+	default:
+	    return op;
+	}
+    }
+
+    private static Mips opcodeInfo(int opcode) {
+	if (opcode < Mips.optable.length)
+	    return Mips.optable[opcode];
+
+	opcode -= Mips.optable.length;
+	if (opcode < Mips.specialtable.length)
+	    return Mips.specialtable[opcode];
+
+	return Mips.regimmtable[opcode - Mips.specialtable.length];
+    }
+
+    /**
+     * Return the mnemonic of the specified opcode.
+     *
+     * @param	opcode	an index into <tt>Stats.numInstructions</tt>.
+     * @return	the mnemonic of the instruction, such as <tt>addiu</tt>.
+     */
+    public static String opcodeName(int opcode) {
+	Lib.assertTrue(opcode >= 0 && opcode < numOpcodes);
+
+	String name = opcodeInfo(opcode).name;
+	int space = name.indexOf(' ');
+
+	return (space < 0) ? name : name.substring(0, space);
+    }
+
+    /**
+     * The part of a decoded instruction that depends only on the instruction
+     * word, and not on any register values.
+     */
+    private static class DecodedInstruction {
+	DecodedInstruction(int value) {
+	    this.value = value;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+
+	    int imm = Lib.extend(value, 0, 16);
+
+	    opcode = opcodeIndex(op, func, rt);
+	    Mips info = opcodeInfo(opcode);
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // branch offset uses the sign-extended immediate
+	    branchOffset = imm<<2;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm &= 0xFFFF;
+
+	    this.imm = imm;
+	}
+
+	final int value, op, rs, rt, rd, sh, func, target, imm;
+	final int opcode, operation, format, flags;
+	final String name;
+	final int size, dstReg, branchOffset;
+    }
+
+    /**
+     * A straight-line sequence of instructions within one physical page,
+     * starting at a branch target (or wherever execution entered it) and
+     * ending with a branch and its delay slot, a syscall, an invalid
+     * instruction, or the end of the page.
+     */
+    private class BasicBlock {
+	BasicBlock(int paddr) {
+	    this.paddr = paddr;
+
+	    int pageEnd = (paddr / pageSize + 1) * pageSize;
+	    ArrayList<BlockOp> list = new ArrayList<BlockOp>();
+
+	    for (int addr=paddr; addr<pageEnd; addr+=4) {
+		DecodedInstruction decoded = decodeAt(addr);
+		list.add(compile(decoded));
+
+		if (Lib.test(Mips.BRANCH, decoded.flags)) {
+		    // include the delay slot, if it is on the same page
+		    if (addr+4 < pageEnd)
+			list.add(compile(decodeAt(addr+4)));
+		    break;
+		}
+
+		if (decoded.operation == Mips.SYSCALL ||
+		    decoded.operation == Mips.UNIMPL ||
+		    decoded.operation == Mips.INVALID)
+		    break;
+	    }
+
+	    ops = list.toArray(new BlockOp[list.size()]);
+	}
+
+	/**
+	 * Test whether this block can still be entered: it has not been
+	 * discarded, and its first instruction has not changed.
+	 *
+	 * @return	<tt>true</tt> if this block can still be entered.
+	 */
+	boolean isCurrent() {
+	    return !discarded &&
+		ops[0].value == memoryView.getInt(paddr);
+	}
+
+	/**
+	 * Return the block starting at the specified physical address, which
+	 * execution reached from the end of this block. The last two
+	 * successors are remembered, which covers both ways out of a
+	 * conditional branch.
+	 *
+	 * @param	paddr	the word-aligned physical address of the next
+	 *			block.
+	 * @return	the next block.
+	 */
+	BasicBlock successor(int paddr) {
+	    if (next0 != null && nextPaddr0 == paddr && next0.isCurrent())
+		return next0;
+	    if (next1 != null && nextPaddr1 == paddr && next1.isCurrent())
+		return next1;
+
+	    next1 = next0;
+	    nextPaddr1 = nextPaddr0;
+	    next0 = blockAt(paddr);
+	    nextPaddr0 = paddr;
+
+	    return next0;
+	}
+
+	/** The physical address of the first instruction. */
+	final int paddr;
+	/** One closure per instruction, in program order. */
+	final BlockOp[] ops;
+	/** The number of times this block ran to completion. */
+	int executions = 0;
+	/** Set once a changed instruction is found inside this block. */
+	boolean discarded = false;
+	/** The compiled code of this block, if it has been compiled. */
+	CompiledBlock code = null;
+
+	private BasicBlock next0 = null, next1 = null;
+	private int nextPaddr0, nextPaddr1;
+    }
+
+    /**
+     * A closure that executes one instruction of a basic block, including
+     * completing the delayed load in progress and advancing the PC. It must
+     * read all its source registers before calling <tt>finishLoad()</tt>, so
+     * that it sees the same register values as the interpreter.
+     */
+    private abstract class BlockOp {
+	BlockOp(DecodedInstruction decoded) {
+	    this.decoded = decoded;
+	    value = decoded.value;
+	}
+
+	abstract void run() throws MipsException;
+
+	/** The decoded instruction. */
+	final DecodedInstruction decoded;
+	/** The instruction word, used to detect modified code. */
+	final int value;
+    }
+
+    /**
+     * Translate a decoded instruction into a closure. Common instructions
+     * get a specialized closure; all others run through the interpreter.
+     *
+     * @param	decoded	the decoded instruction.
+     * @return	a closure that executes the instruction.
+     */
+    private BlockOp compile(final DecodedInstruction decoded) {
+	final int rs = decoded.rs;
+	final int rt = decoded.rt;
+	final int dstReg = decoded.dstReg;
+	final int imm = decoded.imm;
+	final int sh = decoded.sh;
+	final int size = decoded.size;
+	final int branchOffset = decoded.branchOffset;
+	final int target = decoded.target;
+
+	int flags = decoded.flags;
+	boolean src2imm = Lib.test(Mips.SRC2IMM, flags);
+	boolean unsigned = Lib.test(Mips.UNSIGNED, flags);
+	boolean link = Lib.test(Mips.LINK, flags);
+
+	switch (decoded.operation) {
+	case Mips.ADD:
+	    if (Lib.test(Mips.OVERFLOW, flags))
+		break;
+	    if (src2imm)
+		return new BlockOp(decoded) {
+			void run() { retire(dstReg, registers[rs] + imm); }
+		    };
+	    return new BlockOp(decoded) {
+		    void run() {
+			retire(dstReg, registers[rs] + registers[rt]);
+		    }
+		};
+	case Mips.SUB:
+	    if (Lib.test(Mips.OVERFLOW, flags))
+		break;
+	    return new BlockOp(decoded) {
+		    void run() {
+			retire(dstReg, registers[rs] - registers[rt]);
+		    }
+		};
+
+	case Mips.SLL:
+	    if (Lib.test(Mips.SRC1SH, flags))
+		return new BlockOp(decoded) {
+			void run() { retire(dstReg, registers[rt] << sh); }
+		    };
+	    return new BlockOp(decoded) {
+		    void run() {
+			retire(dstReg, registers[rt] << (registers[rs]&0x1F));
+		    }
+		};
+	case Mips.SRA:
+	    if (Lib.test(Mips.SRC1SH, flags))
+		return new BlockOp(decoded) {
+			void run() { retire(dstReg, registers[rt] >> sh); }
+		    };
+	    return new BlockOp(decoded) {
+		    void run() {
+			retire(dstReg, registers[rt] >> (registers[rs]&0x1F));
+		    }
+		};
+	case Mips.SRL:
+	    // the interpreter shifts the sign-extended 64-bit source
+	    if (Lib.test(Mips.SRC1SH, flags))
+		return new BlockOp(decoded) {
+			void run() {
+			    retire(dstReg, (int) (((long) registers[rt]) >>> sh));
+			}
+		    };
+	    return new BlockOp(decoded) {
+		    void run() {
+			retire(dstReg, (int) (((long) registers[rt]) >>>
+					      (registers[rs]&0x1F)));
+		    }
+		};
+
+	case Mips.SLT:
+	    if (unsigned && src2imm)
+		return new BlockOp(decoded) {
+			void run() {
+			    retire(dstReg, ((registers[rs]&0xFFFFFFFFL) <
+					    (imm&0xFFFFFFFFL)) ? 1 : 0);
+			}
+		    };
+	    if (unsigned)
+		return new BlockOp(decoded) {
+			void run() {
+			    retire(dstReg, ((registers[rs]&0xFFFFFFFFL) <
+					    (registers[rt]&0xFFFFFFFFL)) ? 1 : 0);
+			}
+		    };
+	    if (src2imm)
+		return new BlockOp(decoded) {
+			void run() {
+			    retire(dstReg, (registers[rs] < imm) ? 1 : 0);
+			}
+		    };
+	    return new BlockOp(decoded) {
+		    void run() {
+			retire(dstReg, (registers[rs] < registers[rt]) ? 1 : 0);
+		    }
+		};
+
+	case Mips.AND:
+	    if (src2imm)
+		return new BlockOp(decoded) {
+			void run() { retire(dstReg, registers[rs] & imm); }
+		    };
+	    return new BlockOp(decoded) {
+		    void run() {
+			retire(dstReg, registers[rs] & registers[rt]);
+		    }
+		};
+	case Mips.OR:
+	    if (src2imm)
+		return new BlockOp(decoded) {
+			void run() { retire(dstReg, registers[rs] | imm); }
+		    };
+	    return new BlockOp(decoded) {
+		    void run() {
+			retire(dstReg, registers[rs] | registers[rt]);
+		    }
+		};
+	case Mips.XOR:
+	    if (src2imm)
+		return new BlockOp(decoded) {
+			void run() { retire(dstReg, registers[rs] ^ imm); }
+		    };
+	    return new BlockOp(decoded) {
+		    void run() {
+			retire(dstReg, registers[rs] ^ registers[rt]);
+		    }
+		};
+	case Mips.NOR:
+	    if (src2imm)
+		break;
+	    return new BlockOp(decoded) {
+		    void run() {
+			retire(dstReg, ~(registers[rs] | registers[rt]));
+		    }
+		};
+	case Mips.LUI:
+	    final int upper = imm << 16;
+	    return new BlockOp(decoded) {
+		    void run() { retire(dstReg, upper); }
+		};
+
+	case Mips.MFLO:
+	    return new BlockOp(decoded) {
+		    void run() { retire(dstReg, registers[regLo]); }
+		};
+	case Mips.MFHI:
+	    return new BlockOp(decoded) {
+		    void run() { retire(dstReg, registers[regHi]); }
+		};
+
+	case Mips.BEQ:
+	    if (link)
+		break;
+	    return new BlockOp(decoded) {
+		    void run() {
+			branch(registers[rs] == registers[rt],
+			       registers[regNextPC] + branchOffset);
+		    }
+		};
+	case Mips.BNE:
+	    if (link)
+		break;
+	    return new BlockOp(decoded) {
+		    void run() {
+			branch(registers[rs] != registers[rt],
+			       registers[regNextPC] + branchOffset);
+		    }
+		};
+	case Mips.BGEZ:
+	    if (link)
+		break;
+	    return new BlockOp(decoded) {
+		    void run() {
+			branch(registers[rs] >= 0,
+			       registers[regNextPC] + branchOffset);
+		    }
+		};
+	case Mips.BGTZ:
+	    if (link)
+		break;
+	    return new BlockOp(decoded) {
+		    void run() {
+			branch(registers[rs] > 0,
+			       registers[regNextPC] + branchOffset);
+		    }
+		};
+	case Mips.BLEZ:
+	    if (link)
+		break;
+	    return new BlockOp(decoded) {
+		    void run() {
+			branch(registers[rs] <= 0,
+			       registers[regNextPC] + branchOffset);
+		    }
+		};
+	case Mips.BLTZ:
+	    if (link)
+		break;
+	    return new BlockOp(decoded) {
+		    void run() {
+			branch(registers[rs] < 0,
+			       registers[regNextPC] + branchOffset);
+		    }
+		};
+
+	case Mips.JUMP:
+	    if (decoded.format == Mips.JFMT) {
+		if (link)
+		    return new BlockOp(decoded) {
+			    void run() {
+				jumpAndLink(dstReg,
+					    (registers[regNextPC]&0xF0000000) |
+					    (target<<2));
+			    }
+			};
+		return new BlockOp(decoded) {
+			void run() {
+			    branch(true, (registers[regNextPC]&0xF0000000) |
+				   (target<<2));
+			}
+		    };
+	    }
+	    if (link)
+		return new BlockOp(decoded) {
+			void run() { jumpAndLink(dstReg, registers[rs]); }
+		    };
+	    return new BlockOp(decoded) {
+		    void run() { branch(true, registers[rs]); }
+		};
+
+	case Mips.LOAD:
+	    if (unsigned)
+		return new BlockOp(decoded) {
+			void run() throws MipsException {
+			    int value = readMem(registers[rs] + imm, size);
+			    delayedLoad(dstReg, value, 0xFFFFFFFF);
+			    advancePC(registers[regNextPC]+4);
+			}
+		    };
+	    return new BlockOp(decoded) {
+		    void run() throws MipsException {
+			int value = readMem(registers[rs] + imm, size);
+			delayedLoad(dstReg, Lib.extend(value, 0, size*8),
+				    0xFFFFFFFF);
+			advancePC(registers[regNextPC]+4);
+		    }
+		};
+	case Mips.STORE:
+	    return new BlockOp(decoded) {
+		    void run() throws MipsException {
+			writeMem(registers[rs] + imm, size, registers[rt]);
+			retire();
+		    }
+		};
+	}
+
+	return new BlockOp(decoded) {
+		void run() throws MipsException {
+		    blockInterpreter.run(decoded);
+		}
+	    };
+    }
+
+    /**
+     * The superclass of the classes that the JIT engine generates from hot
+     * basic blocks. The generated classes are defined by a class loader of
+     * their own, which puts them in a different runtime package, so this class
+     * is public, and the generated code reaches the processor only through
+     * the protected members below.
+     */
+    public static abstract class CompiledBlock {
+	/**
+	 * Allocate a new compiled block.
+	 *
+	 * @param	processor	the processor that runs the block.
+	 */
+	protected CompiledBlock(Processor processor) {
+	    this.processor = processor;
+
+	    registers = processor.registers;
+	    counts = processor.instructionCounts;
+	}
+
+	/**
+	 * Execute the block, starting with no delayed load in progress, and
+	 * keep executing it for as long as it branches back to its start and
+	 * <i>budget</i> allows another full pass. Returns early after a store
+	 * into the block itself.
+	 *
+	 * @param	budget	the number of instructions that can execute
+	 *			before <tt>Interrupt.tick()</tt> must be called;
+	 *			at least the length of the block.
+	 * @return	the number of instructions the last pass completed.
+	 * @exception	MipsException	if an instruction caused an exception.
+	 */
+	protected abstract int run(int budget) throws MipsException;
+
+	/**
+	 * Load a value from user memory.
+	 *
+	 * @param	vaddr	the virtual address to load from.
+	 * @param	size	the number of bytes to load.
+	 * @return	the value loaded.
+	 * @exception	MipsException	if a fault occurred.
+	 */
+	protected final int load(int vaddr, int size) throws MipsException {
+	    return processor.readMem(vaddr, size);
+	}
+
+	/**
+	 * Store a value to user memory.
+	 *
+	 * @param	vaddr	the virtual address to store to.
+	 * @param	size	the number of bytes to store.
+	 * @param	value	the value to store.
+	 * @return	<tt>true</tt> if the store changed an instruction of this
+	 *		block.
+	 * @exception	MipsException	if a fault occurred.
+	 */
+	protected final boolean store(int vaddr, int size, int value)
+	    throws MipsException {
+	    processor.writeMem(vaddr, size, value);
+
+	    int paddr = processor.lastTranslation.ppn*pageSize +
+		offsetFromAddress(vaddr);
+	    return paddr >= start && paddr < end;
+	}
+
+	/**
+	 * Start a delayed load, to be completed by the next instruction.
+	 *
+	 * @param	target	the register to load, or 0 for none.
+	 * @param	value	the value to load.
+	 */
+	protected final void delayLoad(int target, int value) {
+	    processor.delayedLoad(target, value, 0xFFFFFFFF);
+	}
+
+	/**
+	 * Account for the ticks of instructions that the compiled code ran.
+	 *
+	 * @param	count	the number of instructions.
+	 */
+	protected final void addTicks(int count) {
+	    processor.quantum -= count;
+	    processor.deferredTicks += count;
+	}
+
+	/** The registers of the processor. */
+	protected final int[] registers;
+	/** The per-opcode instruction counters of the processor. */
+	protected final long[] counts;
+
+	private final Processor processor;
+
+	/** The virtual address the block was compiled for. */
+	private int vaddr;
+	/** The physical addresses of the compiled instructions. */
+	private int start, end;
+	/** The number of compiled instructions. */
+	private int length;
+	/** The registers read by the first instruction, as a bit mask. */
+	private long firstSources;
+    }
+
+    /**
+     * Translates a basic block into a class extending
+     * <tt>CompiledBlock</tt>. The longest prefix of the block made of
+     * instructions the compiler handles is translated, and the rest of the
+     * block still runs through its closures.
+     *
+     * <p>
+     * The generated <tt>run()</tt> method keeps every register the block uses
+     * in a local variable, and writes back the ones it changes when it
+     * returns or an instruction causes an exception. The delayed load in
+     * progress is tracked at compile time: the loaded value is kept in a
+     * local variable until the next instruction completes it. The code is
+     * compiled for the virtual address it was reached at, so only the target
+     * of the branch has to be computed at run time.
+     */
+    private static class BlockCompiler implements ClassAssembler.Opcodes {
+	/**
+	 * Allocate a new block compiler.
+	 *
+	 * @param	ops	the closures of the block.
+	 * @param	vaddr	the virtual address of the block.
+	 */
+	BlockCompiler(BlockOp[] ops, int vaddr) {
+	    this.vaddr = vaddr;
+
+	    instructions = new DecodedInstruction[ops.length];
+	    for (int i=0; i<ops.length; i++)
+		instructions[i] = ops[i].decoded;
+
+	    while (length < ops.length && length < maxCompiledLength) {
+		DecodedInstruction inst = instructions[length];
+		if (!canCompile(inst))
+		    break;
+
+		if (Lib.test(Mips.BRANCH, inst.flags)) {
+		    // a branch in a delay slot ends the prefix
+		    if (branchIndex != -1)
+			break;
+		    branchIndex = length;
+		}
+		length++;
+	    }
+	}
+
+	/**
+	 * Return the registers read by the first instruction, as a bit mask.
+	 *
+	 * @return	the registers read by the first instruction.
+	 */
+	long firstSources() {
+	    return sources(instructions[0]) & ~1L;
+	}
+
+	/**
+	 * Test whether an instruction can be compiled. These are the
+	 * instructions that get a specialized closure, and the ones that
+	 * access the high and low registers, except for division.
+	 */
+	private static boolean canCompile(DecodedInstruction inst) {
+	    switch (inst.operation) {
+	    case Mips.ADD:
+	    case Mips.SUB:
+		return !Lib.test(Mips.OVERFLOW, inst.flags);
+	    case Mips.NOR:
+		return !Lib.test(Mips.SRC2IMM, inst.flags);
+	    case Mips.BEQ:
+	    case Mips.BNE:
+	    case Mips.BGEZ:
+	    case Mips.BGTZ:
+	    case Mips.BLEZ:
+	    case Mips.BLTZ:
+		return !Lib.test(Mips.LINK, inst.flags);
+	    case Mips.SLL:
+	    case Mips.SRA:
+	    case Mips.SRL:
+	    case Mips.SLT:
+	    case Mips.AND:
+	    case Mips.OR:
+	    case Mips.XOR:
+	    case Mips.LUI:
+	    case Mips.MULT:
+	    case Mips.MFLO:
+	    case Mips.MFHI:
+	    case Mips.MTLO:
+	    case Mips.MTHI:
+	    case Mips.JUMP:
+	    case Mips.LOAD:
+	    case Mips.STORE:
+		return true;
+	    default:
+		return false;
+	    }
+	}
+
+	/**
+	 * Return the registers an instruction reads, as a bit mask.
+	 */
+	private static long sources(DecodedInstruction inst) {
+	    long rs = 1L << inst.rs;
+	    long rt = 1L << inst.rt;
+
+	    switch (inst.operation) {
+	    case Mips.ADD:
+	    case Mips.SUB:
+	    case Mips.SLT:
+	    case Mips.AND:
+	    case Mips.OR:
+	    case Mips.XOR:
+	    case Mips.NOR:
+		return Lib.test(Mips.SRC2IMM, inst.flags) ? rs : rs|rt;
+	    case Mips.SLL:
+	    case Mips.SRA:
+	    case Mips.SRL:
+		return Lib.test(Mips.SRC1SH, inst.flags) ? rt : rs|rt;
+	    case Mips.MULT:
+	    case Mips.BEQ:
+	    case Mips.BNE:
+	    case Mips.STORE:
+		return rs|rt;
+	    case Mips.BGEZ:
+	    case Mips.BGTZ:
+	    case Mips.BLEZ:
+	    case Mips.BLTZ:
+	    case Mips.MTLO:
+	    case Mips.MTHI:
+	    case Mips.LOAD:
+		return rs;
+	    case Mips.JUMP:
+		return (inst.format == Mips.RFMT) ? rs : 0;
+	    case Mips.MFLO:
+		return 1L << regLo;
+	    case Mips.MFHI:
+		return 1L << regHi;
+	    default:
+		return 0;
+	    }
+	}
+
+	/**
+	 * Return the registers an instruction writes, as a bit mask.
+	 */
+	private static long destinations(DecodedInstruction inst) {
+	    switch (inst.operation) {
+	    case Mips.MULT:
+		return (1L << regLo) | (1L << regHi);
+	    case Mips.MTLO:
+		return 1L << regLo;
+	    case Mips.MTHI:
+		return 1L << regHi;
+	    }
+
+	    if (Lib.test(Mips.DST, inst.flags) ||
+		Lib.test(Mips.DELAYEDLOAD, inst.flags))
+		return 1L << inst.dstReg;
+	    else
+		return 0;
+	}
+
+	/**
+	 * Generate and define the class.
+	 *
+	 * @return	the new class.
+	 */
+	Class<?> assemble() {
+	    ClassAssembler assembler = new ClassAssembler(superName);
+
+	    ClassAssembler.Code init =
+		assembler.method(ACC_PUBLIC, "<init>",
+				 "(Lnachos/machine/Processor;)V", 2, 2);
+	    init.local(ALOAD, 0);
+	    init.local(ALOAD, 1);
+	    init.invoke(INVOKESPECIAL, superName, "<init>",
+			"(Lnachos/machine/Processor;)V");
+	    init.op(RETURN);
+
+	    long used = 0;
+	    for (int i=0; i<length; i++) {
+		used |= sources(instructions[i]) | destinations(instructions[i]);
+		written |= destinations(instructions[i]);
+	    }
+	    used &= ~1L;
+	    written &= ~1L;
+
+	    int numLocals = firstRegisterLocal;
+	    for (int i=1; i<=regHi; i++) {
+		if ((used & (1L << i)) != 0)
+		    registerLocals[i] = numLocals++;
+	    }
+
+	    code = assembler.method(ACC_PUBLIC, "run", "(I)I", 8, numLocals);
+
+	    code.local(ALOAD, 0);
+	    code.field(GETFIELD, superName, "registers", "[I");
+	    code.local(ASTORE, localRegisters);
+	    code.local(ALOAD, 0);
+	    code.field(GETFIELD, superName, "counts", "[J");
+	    code.local(ASTORE, localCounts);
+
+	    code.iconst(0);
+	    code.local(ISTORE, localDone);
+	    code.iconst(0);
+	    code.local(ISTORE, localTarget);
+	    code.iconst(0);
+	    code.local(ISTORE, localLoad);
+
+	    for (int i=1; i<=regHi; i++) {
+		if ((used & (1L << i)) != 0) {
+		    code.local(ALOAD, localRegisters);
+		    code.iconst(i);
+		    code.op(IALOAD);
+		    code.local(ISTORE, registerLocals[i]);
+		}
+	    }
+
+	    ClassAssembler.Label top = new ClassAssembler.Label();
+	    code.mark(top);
+
+	    for (int i=0; i<length; i++)
+		compile(i);
+
+	    // run another pass if the block branches back to its start
+	    if (branchIndex == length-2 && pendingLoad == 0 &&
+		branchTarget == vaddr) {
+		ClassAssembler.Label exit = new ClassAssembler.Label();
+
+		code.local(ILOAD, localTarget);
+		code.iconst(vaddr);
+		code.jump(IF_ICMPNE, exit);
+		code.local(ILOAD, localBudget);
+		code.local(ILOAD, localDone);
+		code.op(ISUB);
+		code.iconst(length*2);
+		code.jump(IF_ICMPLT, exit);
+
+		code.iinc(localDone, length);
+		code.jump(GOTO, top);
+
+		code.mark(exit);
+	    }
+
+	    code.op(ACONST_NULL);
+	    code.local(ASTORE, localException);
+	    exit(length, pendingLoad);
+
+	    compileExit();
+
+	    // exception handlers record where the exception happened
+	    for (int i=0; i<handlers.size(); i++) {
+		ClassAssembler.Label[] labels = handlers.get(i);
+		int[] state = handlerStates.get(i);
+
+		code.mark(labels[2]);
+		code.local(ASTORE, localException);
+		code.iconst(state[0]);
+		code.local(ISTORE, localIndex);
+		code.iconst(state[1]);
+		code.local(ISTORE, localPending);
+		code.jump(GOTO, exitLabel);
+
+		code.handler(labels[0], labels[1], labels[2]);
+	    }
+
+	    return assembler.define();
+	}
+
+	/**
+	 * Compile one instruction, including completing the delayed load in
+	 * progress, if any, and counting the instruction.
+	 */
+	private void compile(int i) {
+	    DecodedInstruction inst = instructions[i];
+	    int pc = vaddr + i*4;
+
+	    boolean src2imm = Lib.test(Mips.SRC2IMM, inst.flags);
+	    boolean src1sh = Lib.test(Mips.SRC1SH, inst.flags);
+	    boolean unsigned = Lib.test(Mips.UNSIGNED, inst.flags);
+	    boolean link = Lib.test(Mips.LINK, inst.flags);
+
+	    ClassAssembler.Label taken, done;
+
+	    switch (inst.operation) {
+	    case Mips.ADD:
+		get(inst.rs);
+		getSource2(inst, src2imm);
+		code.op(IADD);
+		finishLoad();
+		put(inst.dstReg);
+		break;
+	    case Mips.SUB:
+		get(inst.rs);
+		get(inst.rt);
+		code.op(ISUB);
+		finishLoad();
+		put(inst.dstReg);
+		break;
+
+	    case Mips.SLL:
+	    case Mips.SRA:
+		get(inst.rt);
+		getShift(inst, src1sh);
+		code.op(inst.operation == Mips.SLL ? ISHL : ISHR);
+		finishLoad();
+		put(inst.dstReg);
+		break;
+	    case Mips.SRL:
+		// the interpreter shifts the sign-extended 64-bit source
+		get(inst.rt);
+		code.op(I2L);
+		getShift(inst, src1sh);
+		code.op(LUSHR);
+		code.op(L2I);
+		finishLoad();
+		put(inst.dstReg);
+		break;
+
+	    case Mips.SLT:
+		// compare unsigned values with their sign bits flipped
+		get(inst.rs);
+		if (unsigned) {
+		    code.iconst(0x80000000);
+		    code.op(IXOR);
+		}
+		if (src2imm) {
+		    code.iconst(unsigned ? inst.imm ^ 0x80000000 : inst.imm);
+		}
+		else {
+		    get(inst.rt);
+		    if (unsigned) {
+			code.iconst(0x80000000);
+			code.op(IXOR);
+		    }
+		}
+		taken = new ClassAssembler.Label();
+		done = new ClassAssembler.Label();
+		code.jump(IF_ICMPLT, taken);
+		code.iconst(0);
+		code.jump(GOTO, done);
+		code.mark(taken);
+		code.iconst(1);
+		code.mark(done);
+		finishLoad();
+		put(inst.dstReg);
+		break;
+
+	    case Mips.AND:
+	    case Mips.OR:
+	    case Mips.XOR:
+		get(inst.rs);
+		getSource2(inst, src2imm);
+		code.op(inst.operation == Mips.AND ? IAND :
+			inst.operation == Mips.OR ? IOR : IXOR);
+		finishLoad();
+		put(inst.dstReg);
+		break;
+	    case Mips.NOR:
+		get(inst.rs);
+		get(inst.rt);
+		code.op(IOR);
+		code.iconst(-1);
+		code.op(IXOR);
+		finishLoad();
+		put(inst.dstReg);
+		break;
+	    case Mips.LUI:
+		code.iconst(inst.imm << 16);
+		finishLoad();
+		put(inst.dstReg);
+		break;
+
+	    case Mips.MULT:
+		get(inst.rs);
+		code.op(I2L);
+		if (unsigned) {
+		    code.lconst(0xFFFFFFFFL);
+		    code.op(LAND);
+		}
+		get(inst.rt);
+		code.op(I2L);
+		if (unsigned) {
+		    code.lconst(0xFFFFFFFFL);
+		    code.op(LAND);
+		}
+		code.op(LMUL);
+		code.op(DUP2);
+		code.op(L2I);
+		put(regLo);
+		code.iconst(32);
+		code.op(LUSHR);
+		code.op(L2I);
+		put(regHi);
+		finishLoad();
+		break;
+	    case Mips.MFLO:
+	    case Mips.MFHI:
+		get(inst.operation == Mips.MFLO ? regLo : regHi);
+		finishLoad();
+		put(inst.dstReg);
+		break;
+	    case Mips.MTLO:
+	    case Mips.MTHI:
+		get(inst.rs);
+		finishLoad();
+		put(inst.operation == Mips.MTLO ? regLo : regHi);
+		break;
+
+	    case Mips.BEQ:
+	    case Mips.BNE:
+	    case Mips.BGEZ:
+	    case Mips.BGTZ:
+	    case Mips.BLEZ:
+	    case Mips.BLTZ:
+		branchTarget = pc+4 + inst.branchOffset;
+
+		taken = new ClassAssembler.Label();
+		done = new ClassAssembler.Label();
+		get(inst.rs);
+		switch (inst.operation) {
+		case Mips.BEQ:
+		    get(inst.rt);
+		    code.jump(IF_ICMPEQ, taken);
+		    break;
+		case Mips.BNE:
+		    get(inst.rt);
+		    code.jump(IF_ICMPNE, taken);
+		    break;
+		case Mips.BGEZ:
+		    code.jump(IFGE, taken);
+		    break;
+		case Mips.BGTZ:
+		    code.jump(IFGT, taken);
+		    break;
+		case Mips.BLEZ:
+		    code.jump(IFLE, taken);
+		    break;
+		case Mips.BLTZ:
+		    code.jump(IFLT, taken);
+		    break;
+		}
+		code.iconst(pc+8);
+		code.local(ISTORE, localTarget);
+		code.jump(GOTO, done);
+		code.mark(taken);
+		code.iconst(branchTarget);
+		code.local(ISTORE, localTarget);
+		code.mark(done);
+		finishLoad();
+		break;
+
+	    case Mips.JUMP:
+		if (inst.format == Mips.JFMT) {
+		    branchTarget = ((pc+4)&0xF0000000) | (inst.target<<2);
+		    code.iconst(branchTarget);
+		}
+		else {
+		    get(inst.rs);
+		}
+		code.local(ISTORE, localTarget);
+		finishLoad();
+		if (link) {
+		    code.iconst(pc+8);
+		    put(inst.dstReg);
+		}
+		break;
+
+	    case Mips.LOAD:
+		code.local(ALOAD, 0);
+		get(inst.rs);
+		code.iconst(inst.imm);
+		code.op(IADD);
+		code.iconst(inst.size);
+		invokeMemory(i, "load", "(II)I");
+		if (!unsigned && inst.size == 1)
+		    code.op(I2B);
+		else if (!unsigned && inst.size == 2)
+		    code.op(I2S);
+		finishLoad();
+		if (inst.dstReg != 0) {
+		    code.local(ISTORE, localLoad);
+		    pendingLoad = inst.dstReg;
+		}
+		else {
+		    code.op(POP);
+		}
+		break;
+
+	    case Mips.STORE:
+		code.local(ALOAD, 0);
+		get(inst.rs);
+		code.iconst(inst.imm);
+		code.op(IADD);
+		code.iconst(inst.size);
+		get(inst.rt);
+		invokeMemory(i, "store", "(III)Z");
+		finishLoad();
+		break;
+
+	    default:
+		Lib.assertNotReached();
+	    }
+
+	    code.local(ALOAD, localCounts);
+	    code.iconst(inst.opcode);
+	    code.op(DUP2);
+	    code.op(LALOAD);
+	    code.lconst(1);
+	    code.op(LADD);
+	    code.op(LASTORE);
+
+	    if (inst.operation == Mips.STORE) {
+		// return after a store into this block
+		ClassAssembler.Label next = new ClassAssembler.Label();
+		code.jump(IFEQ, next);
+		code.op(ACONST_NULL);
+		code.local(ASTORE, localException);
+		exit(i+1, 0);
+		code.mark(next);
+	    }
+	}
+
+	/**
+	 * Push the value of a register.
+	 */
+	private void get(int register) {
+	    if (register == 0) {
+		code.iconst(0);
+	    }
+	    else {
+		Lib.assertTrue(registerLocals[register] != 0);
+		code.local(ILOAD, registerLocals[register]);
+	    }
+	}
+
+	/**
+	 * Pop a value into a register. Values written to r0 are discarded.
+	 */
+	private void put(int register) {
+	    if (register == 0) {
+		code.op(POP);
+	    }
+	    else {
+		Lib.assertTrue(registerLocals[register] != 0);
+		code.local(ISTORE, registerLocals[register]);
+	    }
+	}
+
+	private void getSource2(DecodedInstruction inst, boolean src2imm) {
+	    if (src2imm)
+		code.iconst(inst.imm);
+	    else
+		get(inst.rt);
+	}
+
+	private void getShift(DecodedInstruction inst, boolean src1sh) {
+	    if (src1sh) {
+		code.iconst(inst.sh);
+	    }
+	    else {
+		get(inst.rs);
+		code.iconst(0x1F);
+		code.op(IAND);
+	    }
+	}
+
+	/**
+	 * Complete the delayed load in progress, if there is one.
+	 */
+	private void finishLoad() {
+	    if (pendingLoad != 0) {
+		code.local(ILOAD, localLoad);
+		put(pendingLoad);
+		pendingLoad = 0;
+	    }
+	}
+
+	/**
+	 * Invoke a memory access method of <tt>CompiledBlock</tt>, with a
+	 * handler that writes back the state before the instruction if the
+	 * access causes an exception.
+	 */
+	private void invokeMemory(int i, String name, String descriptor) {
+	    ClassAssembler.Label[] labels = new ClassAssembler.Label[3];
+	    for (int j=0; j<labels.length; j++)
+		labels[j] = new ClassAssembler.Label();
+
+	    code.mark(labels[0]);
+	    code.invoke(INVOKEVIRTUAL, superName, name, descriptor);
+	    code.mark(labels[1]);
+
+	    handlers.add(labels);
+	    handlerStates.add(new int[] { i, pendingLoad });
+	}
+
+	/**
+	 * Jump to the code that returns from <tt>run()</tt>, which needs the
+	 * number of instructions completed by this pass and the delayed load
+	 * in progress.
+	 */
+	private void exit(int index, int pending) {
+	    code.iconst(index);
+	    code.local(ISTORE, localIndex);
+	    code.iconst(pending);
+	    code.local(ISTORE, localPending);
+	    code.jump(GOTO, exitLabel);
+	}
+
+	/**
+	 * Compile the code that writes back the registers, the PC and the
+	 * delayed load in progress, accounts for the ticks, and then returns
+	 * or rethrows the exception.
+	 */
+	private void compileExit() {
+	    code.mark(exitLabel);
+
+	    // once the delay slot is done, the PC is the branch target
+	    ClassAssembler.Label sequential = new ClassAssembler.Label();
+	    ClassAssembler.Label done = new ClassAssembler.Label();
+	    if (branchIndex != -1) {
+		code.local(ILOAD, localIndex);
+		code.iconst(branchIndex+2);
+		code.jump(IF_ICMPLT, sequential);
+		code.local(ILOAD, localTarget);
+		code.local(ISTORE, localPC);
+		code.jump(GOTO, done);
+	    }
+	    code.mark(sequential);
+	    code.iconst(vaddr);
+	    code.local(ILOAD, localIndex);
+	    code.iconst(2);
+	    code.op(ISHL);
+	    code.op(IADD);
+	    code.local(ISTORE, localPC);
+	    code.mark(done);
+
+	    code.local(ALOAD, localRegisters);
+	    code.iconst(regPC);
+	    code.local(ILOAD, localPC);
+	    code.op(IASTORE);
+
+	    // in the delay slot, the next PC is the branch target
+	    code.local(ALOAD, localRegisters);
+	    code.iconst(regNextPC);
+	    ClassAssembler.Label notDelaySlot = new ClassAssembler.Label();
+	    ClassAssembler.Label nextDone = new ClassAssembler.Label();
+	    if (branchIndex != -1) {
+		code.local(ILOAD, localIndex);
+		code.iconst(branchIndex+1);
+		code.jump(IF_ICMPNE, notDelaySlot);
+		code.local(ILOAD, localTarget);
+		code.jump(GOTO, nextDone);
+	    }
+	    code.mark(notDelaySlot);
+	    code.local(ILOAD, localPC);
+	    code.iconst(4);
+	    code.op(IADD);
+	    code.mark(nextDone);
+	    code.op(IASTORE);
+
+	    for (int i=1; i<=regHi; i++) {
+		if ((written & (1L << i)) != 0) {
+		    code.local(ALOAD, localRegisters);
+		    code.iconst(i);
+		    code.local(ILOAD, registerLocals[i]);
+		    code.op(IASTORE);
+		}
+	    }
+
+	    code.local(ALOAD, 0);
+	    code.local(ILOAD, localPending);
+	    code.local(ILOAD, localLoad);
+	    code.invoke(INVOKEVIRTUAL, superName, "delayLoad", "(II)V");
+
+	    code.local(ALOAD, 0);
+	    code.local(ILOAD, localDone);
+	    code.local(ILOAD, localIndex);
+	    code.op(IADD);
+	    code.invoke(INVOKEVIRTUAL, superName, "addTicks", "(I)V");
+
+	    ClassAssembler.Label normal = new ClassAssembler.Label();
+	    code.local(ALOAD, localException);
+	    code.jump(IFNULL, normal);
+	    code.local(ALOAD, localException);
+	    code.op(ATHROW);
+	    code.mark(normal);
+	    code.local(ILOAD, localIndex);
+	    code.op(IRETURN);
+	}
+
+	/** The number of instructions that can be compiled. */
+	int length = 0;
+
+	private DecodedInstruction[] instructions;
+	private int vaddr;
+	private int branchIndex = -1;
+	private int branchTarget = -1;
+
+	private ClassAssembler.Code code;
+	private ClassAssembler.Label exitLabel = new ClassAssembler.Label();
+	private ArrayList<ClassAssembler.Label[]> handlers =
+	    new ArrayList<ClassAssembler.Label[]>();
+	private ArrayList<int[]> handlerStates = new ArrayList<int[]>();
+
+	private long written = 0;
+	private int[] registerLocals = new int[regHi+1];
+	/** The target of the delayed load in progress, at compile time. */
+	private int pendingLoad = 0;
+
+	private static final String superName =
+	    "nachos/machine/Processor$CompiledBlock";
+
+	/** More instructions would make the method too big for HotSpot. */
+	private static final int maxCompiledLength = 64;
+
+	private static final int
+	    localBudget		= 1,
+	    localRegisters	= 2,
+	    localCounts		= 3,
+	    localDone		= 4,
+	    localTarget		= 5,
+	    localLoad		= 6,
+	    localIndex		= 7,
+	    localPending	= 8,
+	    localException	= 9,
+	    localPC		= 10,
+	    firstRegisterLocal	= 11;
+    }
+
     private static class Mips {
 	Mips() {
 	}
@@ -1118,7 +3454,9 @@ public final class Processor {
 	    STORE	= 38,
 	    SWL		= 39,
 	    SWR		= 40,
-	    MAX		= 40;
+	    LL		= 41,
+	    SC		= 42,
+	    MAX		= 42;
 
 	static final int
 	    IFMT = 1,
@@ -1198,7 +3536,7 @@ public final class Processor {
 	    new Mips(),
 	    new Mips(SWR,   	"swr ta",	IFMT, 0),
 	    new Mips(),
-	    new Mips(UNIMPL,	"ll "),
+	    new Mips(LL,	"ll ta",	IFMT, DELAYEDLOAD|SIZEW),
 	    new Mips(),
 	    new Mips(),
 	    new Mips(),
@@ -1206,7 +3544,7 @@ public final class Processor {
 	    new Mips(),
 	    new Mips(),
 	    new Mips(),
-	    new Mips(UNIMPL,	"sc "),
+	    new Mips(SC,	"sc ta",	IFMT, DST|SIZEW),
 	    new Mips(),
 	    new Mips(),
 	    new Mips(),
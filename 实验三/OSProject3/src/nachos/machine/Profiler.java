@@ -0,0 +1,298 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.security.PrivilegedExceptionAction;
+import java.security.PrivilegedActionException;
+
+/**
+ * A sampling profiler for user programs. Every <tt>Profiler.interval</tt>
+ * ticks, if the current processor was running user code, the profiler
+ * records the PC of the running process and walks its stack using the
+ * procedure descriptors in the COFF symbol table.
+ *
+ * <p>
+ * The kernel tells the profiler which process is which, by calling
+ * <tt>addProcess()</tt> when a program is loaded and
+ * <tt>switchProcess()</tt> when a process is dispatched. When the machine
+ * halts, the profiler prints a flat profile of each process, and writes the
+ * sampled stacks to <tt>Profiler.stackFile</tt> in the folded format read by
+ * flame graph tools.
+ *
+ * <p>
+ * Stacks are walked through the current address translations only, so a
+ * stack that runs through a page missing from the TLB is cut short.
+ */
+public final class Profiler {
+    /**
+     * Allocate a new profiler.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     */
+    public Profiler(Privilege privilege) {
+	System.out.print(" profiler");
+
+	this.privilege = privilege;
+
+	interval = Config.getInteger("Profiler.interval", 100);
+	Lib.assertTrue(interval > 0, "bad value for Profiler.interval");
+	stackFileName = Config.getString("Profiler.stackFile", "nachos.folded");
+
+	sampleInterrupt =
+	    privilege.interrupt.createInterrupt("profiler", new Runnable() {
+		    public void run() { sample(); }
+		});
+
+	scheduleInterrupt();
+    }
+
+    /**
+     * Start profiling a newly loaded process.
+     *
+     * @param	pid	a number identifying the process.
+     * @param	name	the name of the program.
+     * @param	coff	the executable the process is running.
+     */
+    public void addProcess(int pid, String name, Coff coff) {
+	ProcessProfile process = new ProcessProfile(pid, name, coff);
+
+	processes.put(Integer.valueOf(pid), process);
+	profiles.add(process);
+    }
+
+    /**
+     * Note that the specified process is now running on the current
+     * processor. Samples are charged to it until the next call.
+     *
+     * @param	pid	the process now running, or a process that was never
+     *			added if the kernel is running something else.
+     */
+    public void switchProcess(int pid) {
+	current = (ProcessProfile) processes.get(Integer.valueOf(pid));
+    }
+
+    /**
+     * Print a flat profile of every process, and write the sampled stacks to
+     * the stack file.
+     */
+    public void print() {
+	System.out.println("Profile: " + totalSamples + " samples, "
+			   + userSamples + " in user mode");
+
+	for (Iterator i=profiles.iterator(); i.hasNext(); )
+	    ((ProcessProfile) i.next()).print();
+
+	writeStacks();
+    }
+
+    private void scheduleInterrupt() {
+	privilege.interrupt.schedule(interval, sampleInterrupt);
+    }
+
+    private void sample() {
+	scheduleInterrupt();
+
+	totalSamples++;
+
+	Processor processor = Machine.processor();
+	if (Machine.interrupt().inKernelMode() || processor == null ||
+	    current == null)
+	    return;
+
+	userSamples++;
+	current.sample(processor);
+    }
+
+    private void writeStacks() {
+	final File stackFile = new File(stackFileName);
+
+	try {
+	    privilege.doPrivileged(new PrivilegedExceptionAction() {
+		    public Object run() throws IOException {
+			PrintWriter out =
+			    new PrintWriter(new FileWriter(stackFile));
+
+			for (Iterator i=profiles.iterator(); i.hasNext(); )
+			    ((ProcessProfile) i.next()).writeStacks(out);
+
+			out.close();
+			return null;
+		    }
+		});
+	}
+	catch (PrivilegedActionException e) {
+	    System.out.println("Profiler: could not write " + stackFileName);
+	    return;
+	}
+
+	System.out.println("Profiler: stacks written to " + stackFileName);
+    }
+
+    private class ProcessProfile {
+	ProcessProfile(int pid, String name, Coff coff) {
+	    this.pid = pid;
+	    this.name = name;
+	    this.coff = coff;
+	}
+
+	void sample(Processor processor) {
+	    samples++;
+
+	    int pc = processor.readRegister(Processor.regPC);
+	    long[] count = (long[]) pcCounts.get(Integer.valueOf(pc));
+	    if (count == null)
+		pcCounts.put(Integer.valueOf(pc), count = new long[1]);
+	    count[0]++;
+
+	    String stack = unwind(processor, pc);
+	    count = (long[]) stackCounts.get(stack);
+	    if (count == null)
+		stackCounts.put(stack, count = new long[1]);
+	    count[0]++;
+	}
+
+	/**
+	 * Walk the stack of the running process, and return it in folded
+	 * form: the program name, then the procedures from the outermost
+	 * caller in, separated by semicolons.
+	 */
+	private String unwind(Processor processor, int pc) {
+	    int[] registers = new int[Processor.numUserRegisters];
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		registers[i] = processor.readRegister(i);
+
+	    ArrayList frames = new ArrayList();
+
+	    for (int depth=0; depth<maxStackDepth; depth++) {
+		CoffProcedure procedure = coff.findProcedure(pc);
+		if (procedure == null) {
+		    frames.add(unknownName(pc));
+		    break;
+		}
+
+		frames.add(procedure.getName());
+
+		// only the innermost procedure may not have saved $31
+		int returnAddress;
+		int framePointer = procedure.getFramePointer(registers);
+		if (procedure.savesReturnAddress()) {
+		    long saved = processor.peekWord(
+			procedure.getReturnAddressSlot(framePointer));
+		    if (saved == -1)
+			break;
+		    returnAddress = (int) saved;
+		}
+		else if (depth == 0) {
+		    returnAddress = registers[Processor.regRA];
+		}
+		else {
+		    break;
+		}
+
+		if (returnAddress == 0 || returnAddress == pc)
+		    break;
+
+		registers[Processor.regSP] = framePointer;
+		// the caller resumes after the jal and its delay slot
+		pc = returnAddress - 8;
+	    }
+
+	    StringBuffer stack = new StringBuffer(name);
+	    for (int i=frames.size()-1; i>=0; i--)
+		stack.append(';').append(frames.get(i));
+
+	    return stack.toString();
+	}
+
+	void print() {
+	    System.out.println();
+	    System.out.println("Process " + pid + " (" + name + "): "
+			       + samples + " samples");
+	    if (samples == 0)
+		return;
+
+	    HashMap functions = new HashMap();
+	    for (Iterator i=pcCounts.entrySet().iterator(); i.hasNext(); ) {
+		Map.Entry entry = (Map.Entry) i.next();
+		int pc = ((Integer) entry.getKey()).intValue();
+		CoffProcedure procedure = coff.findProcedure(pc);
+		String function =
+		    (procedure == null) ? unknownName(pc) : procedure.getName();
+
+		long[] count = (long[]) functions.get(function);
+		if (count == null)
+		    functions.put(function, count = new long[1]);
+		count[0] += ((long[]) entry.getValue())[0];
+	    }
+
+	    ArrayList sorted = new ArrayList(functions.entrySet());
+	    Collections.sort(sorted, new Comparator() {
+		    public int compare(Object a, Object b) {
+			long countA = ((long[]) ((Map.Entry) a).getValue())[0];
+			long countB = ((long[]) ((Map.Entry) b).getValue())[0];
+			return (countA > countB) ? -1 : (countA < countB) ? 1 : 0;
+		    }
+		});
+
+	    System.out.println("      %  samples  function");
+	    for (Iterator i=sorted.iterator(); i.hasNext(); ) {
+		Map.Entry entry = (Map.Entry) i.next();
+		long count = ((long[]) entry.getValue())[0];
+		System.out.println(pad(Long.toString(count*1000/samples/10) +
+				       "." + count*1000/samples%10, 7) +
+				   pad(Long.toString(count), 9) + "  " +
+				   entry.getKey());
+	    }
+	}
+
+	void writeStacks(PrintWriter out) {
+	    for (Iterator i=stackCounts.entrySet().iterator(); i.hasNext(); ) {
+		Map.Entry entry = (Map.Entry) i.next();
+		out.println(entry.getKey() + " " +
+			    ((long[]) entry.getValue())[0]);
+	    }
+	}
+
+	private int pid;
+	private String name;
+	private Coff coff;
+	private long samples = 0;
+	private HashMap pcCounts = new HashMap();
+	private HashMap stackCounts = new HashMap();
+    }
+
+    private static String unknownName(int pc) {
+	return "0x" + Lib.toHexString(pc);
+    }
+
+    private static String pad(String s, int width) {
+	while (s.length() < width)
+	    s = " " + s;
+	return s;
+    }
+
+    private Privilege privilege;
+    private Interrupt.PendingInterrupt sampleInterrupt;
+    private int interval;
+    private String stackFileName;
+
+    private HashMap processes = new HashMap();
+    private ArrayList profiles = new ArrayList();
+    private ProcessProfile current = null;
+    private long totalSamples = 0, userSamples = 0;
+
+    private static final int maxStackDepth = 64;
+}
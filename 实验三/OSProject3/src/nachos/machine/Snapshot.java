@@ -0,0 +1,260 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.PrivilegedExceptionAction;
+import java.security.PrivilegedActionException;
+
+/**
+ * A snapshot of the simulated machine, which a later run of Nachos can
+ * restore instead of repeating the work that led up to it.
+ *
+ * <p>
+ * A snapshot holds the state of the hardware: the registers and TLB of each
+ * processor, physical memory, the statistics, the pending interrupts, and the
+ * random number generator. The state of the kernel lives in Java objects and
+ * threads that cannot be saved, so the kernel chooses a point where its state
+ * is simple, and writes what it needs to <tt>getKernelState()</tt>.
+ *
+ * <p>
+ * To take a snapshot, construct one, write the kernel state, and call
+ * <tt>write()</tt>. To restore it, <tt>read()</tt> it, rebuild the kernel
+ * state from <tt>getKernelInput()</tt>, and then call <tt>restore()</tt>.
+ * The hardware is restored last, so the simulated time the kernel spends
+ * rebuilding its state does not show.
+ */
+public final class Snapshot {
+    /**
+     * Take a snapshot of the machine as it is now.
+     */
+    public Snapshot() {
+	machineState = new ByteArrayOutputStream();
+	kernelState = new ByteArrayOutputStream();
+
+	try {
+	    saveMachine(new DataOutputStream(machineState));
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("could not save machine state");
+	}
+    }
+
+    private Snapshot(byte[] machineBytes, byte[] kernelBytes) {
+	this.machineBytes = machineBytes;
+	this.kernelBytes = kernelBytes;
+    }
+
+    /**
+     * Return a stream to which the kernel writes its own state, before the
+     * snapshot is written.
+     *
+     * @return	the stream holding the kernel state.
+     */
+    public DataOutputStream getKernelState() {
+	Lib.assertTrue(kernelState != null);
+
+	if (kernelStream == null)
+	    kernelStream = new DataOutputStream(kernelState);
+
+	return kernelStream;
+    }
+
+    /**
+     * Write this snapshot to the specified file.
+     *
+     * @param	name	the name of the file.
+     * @return	<tt>true</tt> if the snapshot was written.
+     */
+    public boolean write(String name) {
+	final File file = new File(name);
+
+	try {
+	    Machine.privilege().doPrivileged(new PrivilegedExceptionAction() {
+		    public Object run() throws IOException {
+			DataOutputStream out =
+			    new DataOutputStream(new FileOutputStream(file));
+
+			out.writeInt(magic);
+			writeBytes(out, machineState.toByteArray());
+			writeBytes(out, kernelState.toByteArray());
+
+			out.close();
+			return null;
+		    }
+		});
+	}
+	catch (PrivilegedActionException e) {
+	    Lib.debug(dbgSnapshot, "\tcould not write " + name);
+	    return false;
+	}
+
+	Lib.debug(dbgSnapshot, "Saved snapshot " + name);
+	return true;
+    }
+
+    /**
+     * Read a snapshot from the specified file. Nothing is restored until
+     * <tt>restore()</tt> is called.
+     *
+     * @param	name	the name of the file.
+     * @return	the snapshot, or <tt>null</tt> if it could not be read.
+     */
+    public static Snapshot read(String name) {
+	final File file = new File(name);
+
+	try {
+	    return (Snapshot)
+		Machine.privilege().doPrivileged(new PrivilegedExceptionAction() {
+			public Object run() throws IOException {
+			    DataInputStream in =
+				new DataInputStream(new FileInputStream(file));
+
+			    try {
+				if (in.readInt() != magic)
+				    return null;
+
+				byte[] machineBytes = readBytes(in);
+				byte[] kernelBytes = readBytes(in);
+				return new Snapshot(machineBytes, kernelBytes);
+			    }
+			    finally {
+				in.close();
+			    }
+			}
+		    });
+	}
+	catch (PrivilegedActionException e) {
+	    Lib.debug(dbgSnapshot, "\tcould not read " + name);
+	    return null;
+	}
+    }
+
+    /**
+     * Return a stream from which the kernel reads back the state it wrote to
+     * <tt>getKernelState()</tt>.
+     *
+     * @return	the stream holding the kernel state.
+     */
+    public DataInputStream getKernelInput() {
+	Lib.assertTrue(kernelBytes != null);
+
+	return new DataInputStream(new ByteArrayInputStream(kernelBytes));
+    }
+
+    /**
+     * Restore the hardware to its state in this snapshot. The machine must
+     * have the same number of processors and physical pages as the one that
+     * took it.
+     */
+    public void restore() {
+	Lib.assertTrue(machineBytes != null);
+
+	try {
+	    restoreMachine(new DataInputStream(
+				new ByteArrayInputStream(machineBytes)));
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("corrupt snapshot");
+	}
+
+	Lib.debug(dbgSnapshot, "Restored snapshot at time = " +
+		  Machine.timer().getTime());
+    }
+
+    /**
+     * Write a translation entry to a snapshot.
+     *
+     * @param	out	the snapshot stream.
+     * @param	entry	the entry to write.
+     */
+    public static void writeEntry(DataOutputStream out, TranslationEntry entry)
+	throws IOException {
+	out.writeInt(entry.vpn);
+	out.writeInt(entry.ppn);
+	out.writeByte((entry.valid ? 1 : 0) | (entry.readOnly ? 2 : 0) |
+		      (entry.used ? 4 : 0) | (entry.dirty ? 8 : 0));
+    }
+
+    /**
+     * Read a translation entry written by <tt>writeEntry()</tt>.
+     *
+     * @param	in	the snapshot stream.
+     * @return	the entry.
+     */
+    public static TranslationEntry readEntry(DataInputStream in)
+	throws IOException {
+	int vpn = in.readInt();
+	int ppn = in.readInt();
+	int bits = in.readByte();
+
+	return new TranslationEntry(vpn, ppn, (bits&1) != 0, (bits&2) != 0,
+				    (bits&4) != 0, (bits&8) != 0);
+    }
+
+    private static void saveMachine(DataOutputStream out) throws IOException {
+	int count = Machine.numProcessors();
+
+	out.writeInt(count);
+	if (count > 0)
+	    out.writeInt(Machine.processor(0).getNumPhysPages());
+
+	Machine.privilege().stats.saveSnapshot(out);
+	Machine.interrupt().saveSnapshot(out);
+	long[] random = Lib.getRandomState();
+	out.writeLong(random[0]);
+	out.writeLong(random[1]);
+
+	for (int cpu=0; cpu<count; cpu++)
+	    Machine.processor(cpu).saveSnapshot(out);
+	if (count > 0)
+	    Machine.processor(0).saveMemory(out);
+    }
+
+    private static void restoreMachine(DataInputStream in) throws IOException {
+	int count = Machine.numProcessors();
+
+	Lib.assertTrue(in.readInt() == count,
+		       "snapshot has a different number of processors");
+	if (count > 0)
+	    Lib.assertTrue(in.readInt() == Machine.processor(0).getNumPhysPages(),
+			   "snapshot has a different amount of memory");
+
+	Machine.privilege().stats.restoreSnapshot(in);
+	Machine.interrupt().restoreSnapshot(in);
+	long seed = in.readLong();
+	Lib.setRandomState(new long[] { seed, in.readLong() });
+
+	for (int cpu=0; cpu<count; cpu++)
+	    Machine.processor(cpu).restoreSnapshot(in);
+	if (count > 0)
+	    Machine.processor(0).restoreMemory(in);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes)
+	throws IOException {
+	out.writeInt(bytes.length);
+	out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+	byte[] bytes = new byte[in.readInt()];
+	in.readFully(bytes);
+	return bytes;
+    }
+
+    private ByteArrayOutputStream machineState, kernelState;
+    private DataOutputStream kernelStream = null;
+    private byte[] machineBytes, kernelBytes;
+
+    private static final int magic = 0x4E534E50;
+
+    private static final char dbgSnapshot = 's';
+}
@@ -21,13 +21,15 @@ public class StandardConsole implements SerialConsole {
 
 	this.privilege = privilege;
 
-	receiveInterrupt = new Runnable() {
-		public void run() { receiveInterrupt(); }
-	    };
-
-	sendInterrupt = new Runnable() {
-		public void run() { sendInterrupt(); }
-	    };		
+	receiveInterrupt =
+	    privilege.interrupt.createInterrupt("console read", new Runnable() {
+		    public void run() { receiveInterrupt(); }
+		});
+
+	sendInterrupt =
+	    privilege.interrupt.createInterrupt("console write", new Runnable() {
+		    public void run() { sendInterrupt(); }
+		});
 	
 	scheduleReceiveInterrupt();
     }
@@ -39,8 +41,7 @@ public class StandardConsole implements SerialConsole {
     }
 
     private void scheduleReceiveInterrupt() {
-	privilege.interrupt.schedule(Stats.ConsoleTime, "console read",
-				     receiveInterrupt);
+	privilege.interrupt.schedule(Stats.ConsoleTime, receiveInterrupt);
     }
 
     /**
@@ -89,7 +90,13 @@ public class StandardConsole implements SerialConsole {
     private void receiveInterrupt() {
 	Lib.assertTrue(incomingKey == -1);
 
-	incomingKey = translateCharacter(in());
+	// a replayed run only sees the characters typed when it was recorded
+	Journal journal = Machine.journal();
+	int c = (journal != null && journal.isReplaying()) ? -1 : in();
+	if (journal != null)
+	    c = journal.poll(Journal.console, c);
+
+	incomingKey = translateCharacter(c);
 	if (incomingKey == -1) {
 	    scheduleReceiveInterrupt();
 	}
@@ -113,8 +120,7 @@ public class StandardConsole implements SerialConsole {
     }
 
     private void scheduleSendInterrupt() {
-	privilege.interrupt.schedule(Stats.ConsoleTime, "console write",
-				     sendInterrupt);
+	privilege.interrupt.schedule(Stats.ConsoleTime, sendInterrupt);
     }
 
     /**
@@ -148,8 +154,8 @@ public class StandardConsole implements SerialConsole {
 
     private Privilege privilege = null;
 
-    private Runnable receiveInterrupt;
-    private Runnable sendInterrupt;
+    private Interrupt.PendingInterrupt receiveInterrupt;
+    private Interrupt.PendingInterrupt sendInterrupt;
 
     private Runnable receiveInterruptHandler = null;
     private Runnable sendInterruptHandler = null;
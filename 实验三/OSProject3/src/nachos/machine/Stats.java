@@ -4,6 +4,11 @@ package nachos.machine;
 
 import nachos.machine.*;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+
 /**
  * An object that maintains Nachos runtime statistics.
  */
@@ -20,7 +25,8 @@ public final class Stats {
     public void print() {
 	System.out.println("Ticks: total " + totalTicks
 			   + ", kernel " + kernelTicks
-			   + ", user " + userTicks);
+			   + ", user " + userTicks
+			   + (idleTicks > 0 ? ", idle " + idleTicks : ""));
 	System.out.println("Disk I/O: reads " + numDiskReads
 			   + ", writes " + numDiskWrites);
 	System.out.println("Console I/O: reads " + numConsoleReads
@@ -29,6 +35,123 @@ public final class Stats {
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+
+	long total = 0;
+	for (int i=0; i<Processor.numOpcodes; i++)
+	    total += numInstructions[i];
+
+	if (total > 0) {
+	    System.out.print("Instructions: total " + total);
+	    for (int i=0; i<Processor.numOpcodes; i++) {
+		if (numInstructions[i] != 0)
+		    System.out.print(", " + Processor.opcodeName(i) + " "
+				     + numInstructions[i]);
+	    }
+	    System.out.println();
+	}
+
+	String exceptions = "";
+	for (int i=0; i<Processor.exceptionNames.length; i++) {
+	    if (numExceptions[i] != 0)
+		exceptions += ", " + Processor.exceptionNames[i].trim() + " "
+		    + numExceptions[i];
+	}
+	if (exceptions.length() > 0)
+	    System.out.println("Exceptions: " + exceptions.substring(2));
+
+	for (int i=0; i<=maxSyscalls; i++) {
+	    if (numSyscalls[i] != 0)
+		System.out.println("Syscall " + syscallName(i) + ": calls "
+				   + numSyscalls[i] + ", kernel ticks "
+				   + syscallTicks[i]);
+	}
+    }
+
+    /**
+     * Write the instruction, exception and syscall counters in CSV form, one
+     * counter per line. Each line gives the kind of counter, its name, its
+     * count, and for syscalls the kernel ticks spent in it.
+     *
+     * @param	out	where to write the counters.
+     */
+    public void writeCSV(PrintWriter out) {
+	out.println("kind,name,count,ticks");
+
+	for (int i=0; i<Processor.numOpcodes; i++) {
+	    if (numInstructions[i] != 0)
+		out.println("instruction," + Processor.opcodeName(i) + ","
+			    + numInstructions[i] + ",");
+	}
+
+	for (int i=0; i<Processor.exceptionNames.length; i++)
+	    out.println("exception," + Processor.exceptionNames[i].trim() + ","
+			+ numExceptions[i] + ",");
+
+	for (int i=0; i<=maxSyscalls; i++) {
+	    if (numSyscalls[i] != 0)
+		out.println("syscall," + syscallName(i) + "," + numSyscalls[i]
+			    + "," + syscallTicks[i]);
+	}
+    }
+
+    /**
+     * Write all the statistics to a snapshot.
+     */
+    void saveSnapshot(DataOutputStream out) throws IOException {
+	out.writeLong(totalTicks);
+	out.writeLong(kernelTicks);
+	out.writeLong(userTicks);
+	out.writeLong(idleTicks);
+
+	out.writeInt(numDiskReads);
+	out.writeInt(numDiskWrites);
+	out.writeInt(numConsoleReads);
+	out.writeInt(numConsoleWrites);
+	out.writeInt(numPageFaults);
+	out.writeInt(numTLBMisses);
+	out.writeInt(numPacketsSent);
+	out.writeInt(numPacketsReceived);
+
+	long[][] counters = counters();
+	for (int i=0; i<counters.length; i++) {
+	    for (int j=0; j<counters[i].length; j++)
+		out.writeLong(counters[i][j]);
+	}
+    }
+
+    /**
+     * Replace all the statistics with those saved in a snapshot.
+     */
+    void restoreSnapshot(DataInputStream in) throws IOException {
+	totalTicks = in.readLong();
+	kernelTicks = in.readLong();
+	userTicks = in.readLong();
+	idleTicks = in.readLong();
+
+	numDiskReads = in.readInt();
+	numDiskWrites = in.readInt();
+	numConsoleReads = in.readInt();
+	numConsoleWrites = in.readInt();
+	numPageFaults = in.readInt();
+	numTLBMisses = in.readInt();
+	numPacketsSent = in.readInt();
+	numPacketsReceived = in.readInt();
+
+	long[][] counters = counters();
+	for (int i=0; i<counters.length; i++) {
+	    for (int j=0; j<counters[i].length; j++)
+		counters[i][j] = in.readLong();
+	}
+    }
+
+    private long[][] counters() {
+	return new long[][] {
+	    numInstructions, numExceptions, numSyscalls, syscallTicks
+	};
+    }
+
+    private static String syscallName(int number) {
+	return (number == maxSyscalls) ? "other" : Integer.toString(number);
     }
 
     /**
@@ -44,6 +167,11 @@ public final class Stats {
      * The total amount of simulated time that Nachos has spent in user mode.
      */
     public long userTicks = 0;
+    /**
+     * The total amount of simulated time that the kernel skipped because it
+     * had nothing to run (see <tt>Interrupt.idle()</tt>).
+     */
+    public long idleTicks = 0;
 
     /** The total number of sectors Nachos has read from the simulated disk.*/
     public int numDiskReads = 0;
@@ -62,6 +190,31 @@ public final class Stats {
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
 
+    /**
+     * The number of user instructions completed, indexed by opcode (see
+     * <tt>Processor.opcodeName()</tt>). An instruction that causes an
+     * exception is not counted here.
+     */
+    public final long[] numInstructions = new long[Processor.numOpcodes];
+    /** The number of CPU exceptions, indexed by cause. */
+    public final long[] numExceptions =
+	new long[Processor.exceptionNames.length];
+    /**
+     * The number of syscalls, indexed by syscall number. Numbers of
+     * <tt>maxSyscalls</tt> and above are counted together in the last entry.
+     */
+    public final long[] numSyscalls = new long[maxSyscalls+1];
+    /**
+     * The kernel ticks spent handling syscalls, indexed like
+     * <tt>numSyscalls</tt>. This is the kernel time that passes before the
+     * syscall returns, so a syscall that blocks is also charged for the kernel
+     * time of the threads that run meanwhile.
+     */
+    public final long[] syscallTicks = new long[maxSyscalls+1];
+
+    /** The number of syscall numbers counted separately. */
+    public static final int maxSyscalls = 32;
+
     /**
      * The amount to advance simulated time after each user instructions is
      * executed.
@@ -162,6 +162,43 @@ public final class TCB {
 	previous.yield();
     }
     
+    /**
+     * Make this TCB the current TCB, as <tt>contextSwitch()</tt> does, but
+     * let the Java thread of the old current TCB keep running. That thread no
+     * longer holds the kernel, so it must not touch any Nachos state besides
+     * its own until it calls <tt>rejoin()</tt> and that returns. This TCB
+     * must not be the current TCB.
+     */
+    public void handOff() {
+	Lib.assertTrue(currentTCB.javaThread == Thread.currentThread());
+
+	// make sure AutoGrader.runningThread() called associateThread()
+	Lib.assertTrue(currentTCB.associated);
+	currentTCB.associated = false;
+
+	Lib.assertTrue(this != currentTCB);
+
+	/* As in contextSwitch(), the running flag must be cleared before
+	 * the next thread is woken up, so that a context switch back to the
+	 * old TCB that comes before rejoin() is not lost.
+	 */
+	TCB previous = currentTCB;
+	previous.running = false;
+
+	this.interrupt();
+    }
+
+    /**
+     * Wait until some other TCB context switches back to this TCB, after
+     * <tt>handOff()</tt> was called while this TCB was the current TCB. Must
+     * be called by the Java thread bound to this TCB.
+     */
+    public void rejoin() {
+	Lib.assertTrue(javaThread == Thread.currentThread());
+
+	this.yield();
+    }
+
     /**
      * Destroy this TCB. This TCB must not be in use by the current thread.
      * This TCB must also have been authorized to be destroyed by the
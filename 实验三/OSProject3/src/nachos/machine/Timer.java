@@ -26,16 +26,18 @@ public final class Timer {
 	
 	this.privilege = privilege;
 	
-	timerInterrupt = new Runnable() {
-		public void run() { timerInterrupt(); }
-	    };
+	timerInterrupt =
+	    privilege.interrupt.createInterrupt("timer", new Runnable() {
+		    public void run() { timerInterrupt(); }
+		});
 	
-	autoGraderInterrupt = new Runnable() {
-		public void run() {
-		    Machine.autoGrader().timerInterrupt(Timer.this.privilege,
-							lastTimerInterrupt);
-		}
-	    };
+	autoGraderInterrupt =
+	    privilege.interrupt.createInterrupt("timerAG", new Runnable() {
+		    public void run() {
+			Machine.autoGrader().timerInterrupt(Timer.this.privilege,
+							    lastTimerInterrupt);
+		    }
+		});
 
 	scheduleInterrupt();
     }
@@ -73,16 +75,16 @@ public final class Timer {
 	int delay = Stats.TimerTicks;
 	delay += Lib.random(delay/10) - (delay/20);
 
-	privilege.interrupt.schedule(delay, "timer", timerInterrupt);
+	privilege.interrupt.schedule(delay, timerInterrupt);
     }
 
     private void scheduleAutoGraderInterrupt() {
-	privilege.interrupt.schedule(1, "timerAG", autoGraderInterrupt);
+	privilege.interrupt.schedule(1, autoGraderInterrupt);
     }
 
     private long lastTimerInterrupt;
-    private Runnable timerInterrupt;
-    private Runnable autoGraderInterrupt;
+    private Interrupt.PendingInterrupt timerInterrupt;
+    private Interrupt.PendingInterrupt autoGraderInterrupt;
 
     private Privilege privilege;
     private Runnable handler = null;
@@ -149,6 +149,29 @@ public abstract class Privilege {
 	 * @param	handler	the interrupt handler to call.
 	 */
 	public void schedule(long when, String type, Runnable handler);
+
+	/**
+	 * Create an interrupt that can be scheduled again each time it occurs,
+	 * without allocating anything. A device that keeps rescheduling the
+	 * same interrupt should use one of these.
+	 *
+	 * @param	type	a name for the type of interrupt.
+	 * @param	handler	the interrupt handler to call.
+	 * @return	the interrupt, not yet scheduled.
+	 */
+	public Interrupt.PendingInterrupt createInterrupt(String type,
+							  Runnable handler);
+
+	/**
+	 * Schedule an interrupt created by <tt>createInterrupt()</tt> to occur
+	 * at some time in the future. The interrupt must not already be
+	 * pending.
+	 *
+	 * @param	when	the number of ticks until the interrupt should
+	 *			occur.
+	 * @param	toOccur	the interrupt to schedule.
+	 */
+	public void schedule(long when, Interrupt.PendingInterrupt toOccur);
 	
 	/**
 	 * Advance the simulated time.
@@ -158,6 +181,33 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the number of user instructions that can execute before an
+	 * interrupt could become due. Their ticks can then be accounted in
+	 * bulk with <tt>tickUser()</tt> instead of one <tt>tick()</tt> at a
+	 * time.
+	 *
+	 * @return	the number of user ticks that can be skipped.
+	 */
+	public int userTicksUntilDue();
+
+	/**
+	 * Advance the simulated time by the specified number of user ticks, none
+	 * of which may cause an interrupt to become due.
+	 *
+	 * @param	count	the number of user instructions executed.
+	 */
+	public void tickUser(int count);
+
+	/**
+	 * Advance the simulated time by the specified number of user ticks,
+	 * which a processor spent running outside the kernel, handle the
+	 * interrupts that became due meanwhile, and enable interrupts.
+	 *
+	 * @param	count	the number of user instructions executed.
+	 */
+	public void tickOutside(int count);
     }
 
     /**
@@ -0,0 +1,30 @@
+/*-------------------------------------------------------------
+ * atomic.h
+ *
+ * Atomic operations and spin locks for user programs, built on
+ * the processor's ll/sc instructions. None of these make a
+ * system call.
+ *-------------------------------------------------------------*/
+
+#ifndef ATOMIC_H
+#define ATOMIC_H
+
+/* Atomically store value into *p, and return the old value. */
+int atomic_swap(int *p, int value);
+
+/* Atomically add delta to *p, and return the new value. */
+int atomic_add(int *p, int delta);
+
+/* Atomically replace *p with new if it equals old. Return 1 if replaced. */
+int atomic_cas(int *p, int old, int new);
+
+typedef int spinlock_t;
+
+#define SPINLOCK_INIT	0
+
+void spin_init(spinlock_t *lock);
+void spin_lock(spinlock_t *lock);
+int spin_trylock(spinlock_t *lock);
+void spin_unlock(spinlock_t *lock);
+
+#endif // ATOMIC_H
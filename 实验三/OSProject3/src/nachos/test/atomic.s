@@ -0,0 +1,72 @@
+/* atomic.s
+ *	Atomic read-modify-write primitives for user programs.
+ *
+ *	Each one loops on ll/sc until the store conditional succeeds. The
+ *	library is assembled with -mips1, which doesn't know ll and sc
+ *	(they are MIPS II), so they are emitted as .word:
+ *
+ *		ll	$2,0($4)	= 0xc0820000
+ *		sc	$8,0($4)	= 0xe0880000
+ *
+ *	The assembler can't see that the first .word is a load, so these
+ *	routines are written with noreorder and fill their own load and
+ *	branch delay slots.
+ */
+
+        .text   
+        .align  2
+	.set	noreorder
+
+/* -------------------------------------------------------------
+ * int atomic_swap(int *p, int value)
+ * -------------------------------------------------------------
+ */
+	.globl	atomic_swap
+	.ent	atomic_swap
+atomic_swap:
+	.word	0xc0820000	/* ll	$2,0($4) */
+	addu	$8,$5,$0
+	.word	0xe0880000	/* sc	$8,0($4) */
+	beq	$8,$0,atomic_swap
+	nop
+	j	$31
+	nop
+	.end	atomic_swap
+
+/* -------------------------------------------------------------
+ * int atomic_add(int *p, int delta)
+ * -------------------------------------------------------------
+ */
+	.globl	atomic_add
+	.ent	atomic_add
+atomic_add:
+	.word	0xc0820000	/* ll	$2,0($4) */
+	nop
+	addu	$8,$2,$5
+	.word	0xe0880000	/* sc	$8,0($4) */
+	beq	$8,$0,atomic_add
+	nop
+	j	$31
+	addu	$2,$2,$5
+	.end	atomic_add
+
+/* -------------------------------------------------------------
+ * int atomic_cas(int *p, int old, int new)
+ * -------------------------------------------------------------
+ */
+	.globl	atomic_cas
+	.ent	atomic_cas
+atomic_cas:
+	.word	0xc0820000	/* ll	$2,0($4) */
+	nop
+	bne	$2,$5,1f
+	addu	$2,$0,$0
+	addu	$8,$6,$0
+	.word	0xe0880000	/* sc	$8,0($4) */
+	beq	$8,$0,atomic_cas
+	nop
+	j	$31
+	addiu	$2,$0,1
+1:	j	$31
+	nop
+	.end	atomic_cas
@@ -0,0 +1,31 @@
+/* spinlock.c
+ *	Spin locks for user programs, built on atomic_swap(). Acquiring
+ *	an uncontended lock takes a handful of instructions and no
+ *	system call.
+ */
+
+#include "atomic.h"
+
+void spin_init(spinlock_t *lock)
+{
+  *lock = SPINLOCK_INIT;
+}
+
+void spin_lock(spinlock_t *lock)
+{
+  while (atomic_swap(lock, 1) != 0) {
+    /* wait for it to look free before trying again */
+    while (*(volatile spinlock_t *) lock != 0)
+      ;
+  }
+}
+
+int spin_trylock(spinlock_t *lock)
+{
+  return atomic_swap(lock, 1) == 0;
+}
+
+void spin_unlock(spinlock_t *lock)
+{
+  *(volatile spinlock_t *) lock = 0;
+}
@@ -0,0 +1,26 @@
+/* sysbench.c
+ *	Benchmark for the cost of a system call.
+ *
+ *	Closes an invalid file descriptor, which the kernel rejects right
+ *	away, the given number of times (300000 by default) and then shuts
+ *	down the OS. Subtract the running time of halt.coff and divide to get
+ *	the number of syscalls per second.
+ */
+
+#include "syscall.h"
+#include "stdlib.h"
+
+int
+main(int argc, char** argv)
+{
+    int i, n = 300000;
+
+    if (argc > 1)
+	n = atoi(argv[1]);
+
+    for (i=0; i<n; i++)
+	close(-1);
+
+    halt();
+    /* not reached */
+}
@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.LinkedList;
+
 /**
  * A KThread is a thread that can be used to execute Nachos kernel code. Nachos
  * allows multiple threads to run concurrently.
@@ -266,6 +268,139 @@ public class KThread {
 	Machine.autoGrader().readyThread(this);
     }
 
+    /**
+     * Leave the kernel, to run user code on the current processor in parallel
+     * with the kernel, and give the kernel to the next thread. Unlike
+     * <tt>yield()</tt> and <tt>sleep()</tt>, this does not stop the current
+     * thread, which keeps running on its own host thread but is no longer
+     * the current thread. It must not touch the kernel again until
+     * <tt>enterKernel()</tt> returns.
+     *
+     * <p>
+     * Called by a processor of a multiprocessor machine, through the exit
+     * handler set by <tt>Processor.setKernelHandlers()</tt>.
+     */
+    public static void leaveKernel() {
+	Lib.debug(dbgThread, "Leaving kernel: " + currentThread.toString());
+
+	Machine.interrupt().disable();
+
+	Lib.assertTrue(currentThread.status == statusRunning);
+	currentThread.status = statusOutside;
+	currentThread.returnTime = Machine.timer().getTime()
+	    + (long) Machine.processor().getOutsideTicks() * Stats.UserTick;
+	outside.add(currentThread);
+
+	admitEntering(false);
+
+	KThread nextThread = readyQueue.nextThread();
+	if (nextThread == null)
+	    nextThread = idleThread;
+
+	Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
+		  + " to: " + nextThread.toString());
+
+	currentThread = nextThread;
+
+	nextThread.tcb.handOff();
+    }
+
+    /**
+     * Come back into the kernel after <tt>leaveKernel()</tt>. This thread is
+     * put on the entry queue, and the thread holding the kernel moves it to
+     * the ready queue once simulated time reaches the time this thread is
+     * due back (see <tt>admitEntering()</tt>). Returns
+     * with interrupts disabled, once this thread is the current thread
+     * again.
+     *
+     * <p>
+     * Called on this thread's host thread, which does not hold the kernel,
+     * through the entry handler set by
+     * <tt>Processor.setKernelHandlers()</tt>.
+     */
+    public void enterKernel() {
+	Lib.assertTrue(status == statusOutside);
+
+	entryLock.acquire();
+	entering.add(this);
+	entryLock.release();
+
+	Machine.interrupt().signal();
+
+	tcb.rejoin();
+
+	Lib.debug(dbgThread, "Entering kernel: " + toString());
+
+	currentThread.restoreState();
+    }
+
+    /**
+     * Wait until every thread that left the kernel is waiting to come back
+     * in, so that no processor runs user code outside the kernel. They stay
+     * out of the kernel, and off their processors, until the current thread
+     * gives up the kernel, so interrupts must be disabled until the caller
+     * no longer depends on this.
+     */
+    public static void stopProcessors() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	while (true) {
+	    entryLock.acquire();
+	    int numEntering = entering.size();
+	    entryLock.release();
+
+	    if (numEntering == outside.size())
+		break;
+
+	    Machine.interrupt().waitForSignal();
+	}
+    }
+
+    /**
+     * Move the threads outside the kernel that are due back to the ready
+     * queue, in the order they left. A thread is due back once simulated time
+     * reaches the end of the slice it left to run, whether or not its host
+     * thread got that far yet, so that the order threads come back in does
+     * not depend on how the host schedules them.
+     *
+     * @param	force	if <tt>true</tt>, also let in the first thread that
+     *			left, even if it is not due back yet.
+     */
+    private static void admitEntering(boolean force) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+
+	while (!outside.isEmpty()) {
+	    KThread thread = outside.getFirst();
+	    if (thread.returnTime > time && !force)
+		break;
+
+	    thread.waitUntilEntering();
+	    outside.removeFirst();
+	    thread.ready();
+
+	    force = false;
+	}
+    }
+
+    /**
+     * Wait until this thread, which is outside the kernel, wants to come
+     * back in, and take it off the entry queue.
+     */
+    private void waitUntilEntering() {
+	while (true) {
+	    entryLock.acquire();
+	    boolean found = entering.remove(this);
+	    entryLock.release();
+
+	    if (found)
+		break;
+
+	    Machine.interrupt().waitForSignal();
+	}
+    }
+
     /**
      * Waits for this thread to finish. If this thread is already finished,
      * return immediately. This method must only be called once; the second
@@ -287,12 +422,33 @@ public class KThread {
      *
      * <p>
      * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+     *
+     * <p>
+     * If <tt>ThreadedKernel.idleFastForward</tt> is set, the idle thread does
+     * not spin until the next interrupt, but skips the simulated time up to
+     * it (see <tt>waitForInterrupt()</tt>).
+     *
+     * <p>
+     * While threads run user code outside the kernel, the idle thread waits
+     * for them instead (see <tt>waitForProcessor()</tt>).
      */
     private static void createIdleThread() {
 	Lib.assertTrue(idleThread == null);
+
+	final boolean fastForward =
+	    Config.getBoolean("ThreadedKernel.idleFastForward", false);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() {
+		while (true) {
+		    if (!outside.isEmpty())
+			waitForProcessor();
+		    else if (fastForward)
+			waitForInterrupt();
+		    else
+			KThread.yield();
+		}
+	    }
 	});
 	idleThread.setName("idle");
 
@@ -301,11 +457,64 @@ public class KThread {
 	idleThread.fork();
     }
     
+    /**
+     * Run by the idle thread instead of <tt>yield()</tt>. If another thread
+     * is ready, switch to it. Otherwise no thread can run until an interrupt
+     * makes one ready, so let the hardware skip ahead to the next interrupt.
+     */
+    private static void waitForInterrupt() {
+	Lib.assertTrue(currentThread == idleThread);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread nextThread = readyQueue.nextThread();
+	if (nextThread == null) {
+	    Machine.interrupt().idle();
+	}
+	else {
+	    currentThread.ready();
+	    nextThread.run();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+    
+    /**
+     * Run by the idle thread instead of <tt>yield()</tt> while threads run
+     * user code outside the kernel. Let in the ones that are due back, and if
+     * no thread is ready, let in the first one that left, waiting for its
+     * processor if needed. Simulated time does not pass while waiting, since
+     * the processors outside account for their own when their threads come
+     * back.
+     */
+    private static void waitForProcessor() {
+	Lib.assertTrue(currentThread == idleThread);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	admitEntering(false);
+
+	KThread nextThread = readyQueue.nextThread();
+	if (nextThread == null) {
+	    admitEntering(true);
+	    nextThread = readyQueue.nextThread();
+	}
+
+	currentThread.ready();
+	nextThread.run();
+
+	Machine.interrupt().restore(intStatus);
+    }
+    
     /**
      * Determine the next thread to run, then dispatch the CPU to the thread
-     * using <tt>run()</tt>.
+     * using <tt>run()</tt>. Threads waiting to come back into the kernel are
+     * let in first.
      */
     private static void runNextThread() {
+	if (!outside.isEmpty())
+	    admitEntering(false);
+
 	KThread nextThread = readyQueue.nextThread();
 	if (nextThread == null)
 	    nextThread = idleThread;
@@ -421,16 +630,20 @@ public class KThread {
     private static final int statusRunning = 2;
     private static final int statusBlocked = 3;
     private static final int statusFinished = 4;
+    private static final int statusOutside = 5;
 
     /**
      * The status of this thread. A thread can either be new (not yet forked),
-     * ready (on the ready queue but not running), running, or blocked (not
-     * on the ready queue and not running).
+     * ready (on the ready queue but not running), running, blocked (not
+     * on the ready queue and not running), or outside (running user code
+     * outside the kernel, or waiting to come back in).
      */
     private int status = statusNew;
     private String name = "(unnamed thread)";
     private Runnable target;
     private TCB tcb;
+    /** While outside the kernel, the time this thread is due back. */
+    private long returnTime;
 
     /**
      * Unique identifer for this thread. Used to deterministically compare
@@ -444,4 +657,11 @@ public class KThread {
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
+
+    /** The threads outside the kernel, in the order they left it. */
+    private static LinkedList<KThread> outside = new LinkedList<KThread>();
+    /** The threads waiting to come back into the kernel. */
+    private static LinkedList<KThread> entering = new LinkedList<KThread>();
+    /** Guards <tt>entering</tt>, which threads outside the kernel add to. */
+    private static SpinLock entryLock = new SpinLock();
 }
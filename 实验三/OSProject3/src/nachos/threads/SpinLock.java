@@ -0,0 +1,48 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A <tt>SpinLock</tt> is a lock that busy-waits instead of sleeping, for
+ * short critical sections shared by the kernel and threads running user code
+ * outside it on a multiprocessor machine (see <tt>Processor.count</tt> and
+ * <tt>KThread.leaveKernel()</tt>).
+ *
+ * <p>
+ * A thread outside the kernel cannot use a <tt>Lock</tt>, disable interrupts
+ * or even ask which thread is current, so a spin lock does none of these.
+ * The lock word is updated atomically, so the lock stays correct while the
+ * processors run at the same time. In the kernel, a spin lock must only be
+ * held with interrupts disabled, so that its holder is not switched out while
+ * another processor spins. A critical section guarded by a spin lock must not
+ * sleep.
+ */
+public class SpinLock {
+    /**
+     * Allocate a new spin lock. The lock will initially be <i>free</i>.
+     */
+    public SpinLock() {
+    }
+
+    /**
+     * Acquire this lock, spinning until it is free. The caller must not
+     * already hold this lock.
+     */
+    public void acquire() {
+	while (!busy.compareAndSet(false, true))
+	    ;
+    }
+
+    /**
+     * Release this lock, which the caller must hold.
+     */
+    public void release() {
+	Lib.assertTrue(busy.get());
+
+	busy.set(false);
+    }
+
+    private AtomicBoolean busy = new AtomicBoolean(false);
+}
@@ -22,9 +22,36 @@ public class UThread extends KThread {
 	    });
 
 	this.process = process;
+
+	// spread user threads over the processors
+	cpu = nextProcessor;
+	nextProcessor = (nextProcessor + 1) % Machine.numProcessors();
+
+	if (processorOwners == null) {
+	    processorOwners = new UThread[Machine.numProcessors()];
+	    processorQueues = new ThreadQueue[Machine.numProcessors()];
+	    for (int i=0; i<processorQueues.length; i++)
+		processorQueues[i] =
+		    ThreadedKernel.scheduler.newThreadQueue(false);
+	}
+    }
+
+    /**
+     * Return the thread whose user registers are on the specified processor.
+     * While that thread runs user code outside the kernel, it is the only
+     * thread that can use the processor.
+     *
+     * @param	cpu	the processor number.
+     * @return	the thread that owns the processor, or <tt>null</tt>.
+     */
+    public static UThread currentThread(int cpu) {
+	return processorOwners[cpu];
     }
 
     private void runProgram() {
+	Machine.setCurrentProcessor(cpu);
+	if (Machine.profiler() != null)
+	    Machine.profiler().switchProcess(process.PID);
 	process.initRegisters();
 	process.restoreState();
 
@@ -34,25 +61,58 @@ public class UThread extends KThread {
     }
     
     /**
-     * Save state before giving up the processor to another thread.
+     * Save state before giving up the processor to another thread. The
+     * processor goes straight to the next thread waiting for it, if any.
      */
     protected void saveState() {
-	process.saveState();
+	if (processorOwners[cpu] == this) {
+	    process.saveState();
 
-	for (int i=0; i<Processor.numUserRegisters; i++)
-	    userRegisters[i] = Machine.processor().readRegister(i);
+	    Processor processor = Machine.processor(cpu);
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		userRegisters[i] = processor.readRegister(i);
+
+	    UThread next = (UThread) processorQueues[cpu].nextThread();
+	    processorOwners[cpu] = next;
+	    if (next != null) {
+		for (int i=0; i<Processor.numUserRegisters; i++)
+		    processor.writeRegister(i, next.userRegisters[i]);
+		next.ready();
+	    }
+	}
 
 	super.saveState();
     }
 
     /**
      * Restore state before receiving the processor again.
+     *
+     * <p>
+     * On a multiprocessor machine, the processor may still be running
+     * another thread's user code outside the kernel. Then this thread sleeps
+     * until that thread gives the processor up, and runs again with its
+     * registers already on the processor.
      */      
     protected void restoreState() {
 	super.restoreState();
-	
-	for (int i=0; i<Processor.numUserRegisters; i++)
-	    Machine.processor().writeRegister(i, userRegisters[i]);
+
+	if (processorOwners[cpu] == null) {
+	    processorOwners[cpu] = this;
+
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		Machine.processor(cpu).writeRegister(i, userRegisters[i]);
+	}
+	else if (processorOwners[cpu] != this) {
+	    processorQueues[cpu].waitForAccess(this);
+	    KThread.sleep();
+
+	    // the restoreState() that woke us up has done the rest
+	    return;
+	}
+
+	Machine.setCurrentProcessor(cpu);
+	if (Machine.profiler() != null)
+	    Machine.profiler().switchProcess(process.PID);
 	
 	process.restoreState();
     }
@@ -72,4 +132,14 @@ public class UThread extends KThread {
      * The process to which this thread belongs.
      */
     public UserProcess process;
+    /**
+     * The processor this thread runs user code on.
+     */
+    public int cpu;
+
+    private static int nextProcessor = 0;
+    /** The thread whose user registers are on each processor. */
+    private static UThread[] processorOwners = null;
+    /** The threads waiting for each processor. */
+    private static ThreadQueue[] processorQueues = null;
 }
@@ -18,18 +18,38 @@ public class UserKernel extends ThreadedKernel {
 
 	/**
 	 * Initialize this kernel. Creates a synchronized console and sets the
-	 * processor's exception handler.
+	 * processors' exception handlers, and on a multiprocessor machine their
+	 * kernel entry and exit handlers.
 	 */
 	public void initialize(String[] args) {
 		super.initialize(args);
 
 		console = new SynchConsole(Machine.console());
 
-		Machine.processor().setExceptionHandler(new Runnable() {
+		Runnable handler = new Runnable() {
 			public void run() {
 				exceptionHandler();
 			}
-		});
+		};
+		for (int cpu = 0; cpu < Machine.numProcessors(); cpu++)
+			Machine.processor(cpu).setExceptionHandler(handler);
+
+		// with more than one processor, user code runs outside the kernel
+		if (Machine.numProcessors() > 1) {
+			Runnable exitHandler = new Runnable() {
+				public void run() {
+					KThread.leaveKernel();
+				}
+			};
+			for (int cpu = 0; cpu < Machine.numProcessors(); cpu++) {
+				final int processor = cpu;
+				Machine.processor(cpu).setKernelHandlers(exitHandler, new Runnable() {
+					public void run() {
+						UThread.currentThread(processor).enterKernel();
+					}
+				});
+			}
+		}
 
 		for (int currentPageIndex = 0; currentPageIndex < Machine.processor().getNumPhysPages(); currentPageIndex++)
 			freePages.add(new TranslationEntry(0, currentPageIndex, false, false, false, false));
@@ -83,7 +103,11 @@ public class UserKernel extends ThreadedKernel {
 		UserProcess process = UserProcess.newUserProcess();
 
 		String shellProgram = Machine.getShellProgramName();
-		Lib.assertTrue(process.execute(shellProgram, new String[] {}));
+		String snapshotName = Config.getString("Kernel.restoreSnapshot");
+		if (snapshotName != null)
+			Lib.assertTrue(process.restoreSnapshot(snapshotName), "could not restore " + snapshotName);
+		else
+			Lib.assertTrue(process.execute(shellProgram, new String[] {}));
 
 		KThread.currentThread().finish();
 	}
@@ -116,6 +140,51 @@ public class UserKernel extends ThreadedKernel {
 			return returnPages;
 	}
 
+	/**
+	 * Acquire the specific free pages named by <tt>entries</tt>, such as those
+	 * of a process restored from a snapshot. The pages keep their other
+	 * fields from <tt>entries</tt>.
+	 * @param entries
+	 * @return
+	 * @throws InadequatePagesException if any of the pages is not free
+	 */
+	TranslationEntry[] acquirePages(TranslationEntry[] entries) throws InadequatePagesException {
+		TranslationEntry[] returnPages = new TranslationEntry[entries.length];
+		
+		freePagesLock.acquire();
+		
+		for (TranslationEntry te : freePages) {
+			for (int i = 0; i < entries.length; i++) {
+				if (entries[i].ppn == te.ppn)
+					returnPages[i] = te;
+			}
+		}
+
+		boolean found = true;
+		for (int i = 0; i < entries.length; i++) {
+			if (returnPages[i] == null)
+				found = false;
+		}
+
+		if (found) {
+			for (int i = 0; i < entries.length; i++) {
+				freePages.remove(returnPages[i]);
+				returnPages[i].vpn = entries[i].vpn;
+				returnPages[i].valid = true;
+				returnPages[i].readOnly = entries[i].readOnly;
+				returnPages[i].used = entries[i].used;
+				returnPages[i].dirty = entries[i].dirty;
+			}
+		}
+		
+		freePagesLock.release();
+		
+		if (!found)
+			throw new InadequatePagesException();
+		else
+			return returnPages;
+	}
+
 	/**
 	 * Return the pages in <tt>pageTable</tt> to the free pages in <tt>this</tt>.
 	 * 
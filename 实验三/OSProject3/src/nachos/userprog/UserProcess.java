@@ -4,7 +4,10 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.UserKernel.InadequatePagesException;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -65,11 +68,160 @@ public class UserProcess {
 	public boolean execute(String name, String[] args) {
 		if (!load(name, args))
 			return false;
+
+		// the first program loaded is the point to take a snapshot at
+		String snapshotName = Config.getString("Kernel.saveSnapshot");
+		if (snapshotName != null && PID == 0 && !saveSnapshot(snapshotName, name, args))
+			Lib.debug(dbgProcess, "\tcould not save snapshot " + snapshotName);
+
+		new UThread(this).setName(name).fork();
+
+		return true;
+	}
+
+	/**
+	 * Restore a snapshot saved by <tt>execute()</tt> into this new process,
+	 * instead of loading its program, and then fork a thread to run it. The
+	 * machine is left just as it was when the snapshot was taken.
+	 * 
+	 * @param fileName
+	 *            the name of the snapshot file.
+	 * @return <tt>true</tt> if the snapshot was restored.
+	 */
+	public boolean restoreSnapshot(String fileName) {
+		Snapshot snapshot = Snapshot.read(fileName);
+		if (snapshot == null)
+			return false;
+
+		DataInputStream in = snapshot.getKernelInput();
+		String name;
+		try {
+			name = in.readUTF();
+			String[] args = new String[in.readInt()];
+			for (int i = 0; i < args.length; i++)
+				args[i] = in.readUTF();
+
+			if (!readSnapshot(in, name, args))
+				return false;
+		} catch (IOException e) {
+			Lib.debug(dbgProcess, "\tcorrupt snapshot");
+			return false;
+		}
+
+		snapshot.restore();
+
 		new UThread(this).setName(name).fork();
 
 		return true;
 	}
 
+	/**
+	 * Save a snapshot of the machine with this process loaded but not yet
+	 * started. Neither this nor <tt>restoreSnapshot()</tt> lets simulated
+	 * time pass between the snapshot and the fork, so a restored run keeps
+	 * the same simulated time as the original.
+	 */
+	private boolean saveSnapshot(String fileName, String name, String[] args) {
+		Snapshot snapshot = new Snapshot();
+		DataOutputStream out = snapshot.getKernelState();
+		boolean saved;
+		try {
+			out.writeUTF(name);
+			out.writeInt(args.length);
+			for (int i = 0; i < args.length; i++)
+				out.writeUTF(args[i]);
+
+			writeSnapshot(out);
+			saved = snapshot.write(fileName);
+		} catch (IOException e) {
+			saved = false;
+		}
+
+		return saved;
+	}
+
+	/**
+	 * Write the state set up by <tt>load()</tt> to a snapshot: the initial
+	 * registers, and then the pages, which <tt>writeSections()</tt> writes.
+	 * 
+	 * @param out
+	 *            the kernel state of the snapshot.
+	 */
+	protected void writeSnapshot(DataOutputStream out) throws IOException {
+		out.writeInt(PID);
+		out.writeInt(numPages);
+		out.writeInt(initialPC);
+		out.writeInt(initialSP);
+		out.writeInt(argc);
+		out.writeInt(argv);
+
+		writeSections(out);
+	}
+
+	/**
+	 * Write the pages set up by <tt>loadSections()</tt> and
+	 * <tt>loadArguments()</tt> to a snapshot: the page table. The contents of
+	 * the pages are saved with physical memory.
+	 * 
+	 * @param out
+	 *            the kernel state of the snapshot.
+	 */
+	protected void writeSections(DataOutputStream out) throws IOException {
+		for (int i = 0; i < numPages; i++)
+			Snapshot.writeEntry(out, pageTable[i]);
+	}
+
+	/**
+	 * Read back the state written by <tt>writeSnapshot()</tt>.
+	 * 
+	 * @param in
+	 *            the kernel state of the snapshot.
+	 * @param name
+	 *            the name of the program in the snapshot.
+	 * @param args
+	 *            the arguments it was loaded with.
+	 * @return <tt>true</tt> if the state was restored.
+	 */
+	protected boolean readSnapshot(DataInputStream in, String name, String[] args) throws IOException {
+		if (in.readInt() != PID)
+			return false;
+
+		numPages = in.readInt();
+		initialPC = in.readInt();
+		initialSP = in.readInt();
+		argc = in.readInt();
+		argv = in.readInt();
+
+		return readSections(in, name, args);
+	}
+
+	/**
+	 * Read back the pages written by <tt>writeSections()</tt>, taking the
+	 * same physical pages from the kernel.
+	 * 
+	 * @param in
+	 *            the kernel state of the snapshot.
+	 * @param name
+	 *            the name of the program in the snapshot.
+	 * @param args
+	 *            the arguments it was loaded with.
+	 * @return <tt>true</tt> if the pages were restored.
+	 */
+	protected boolean readSections(DataInputStream in, String name, String[] args) throws IOException {
+		TranslationEntry[] entries = new TranslationEntry[numPages];
+		for (int i = 0; i < numPages; i++)
+			entries[i] = Snapshot.readEntry(in);
+
+		try {
+			pageTable = ((UserKernel) Kernel.kernel).acquirePages(entries);
+		} catch (InadequatePagesException e) {
+			Lib.debug(dbgProcess, "\tsnapshot pages in use");
+			return false;
+		}
+
+		return true;
+	}
+
 	/**
 	 * Save the state of this process in preparation for a context switch.
 	 * Called by <tt>UThread.saveState()</tt>.
@@ -283,11 +435,11 @@ public class UserProcess {
 				translationEntry = pageTable[vpn];
 			if (translationEntry.valid) {
 				if (accessType == AccessType.READ) {//Do a read
-					System.arraycopy(Machine.processor().getMemory(), pageStart + (Processor.pageSize * translationEntry.ppn), data, dataStart, length);
+					Machine.processor().readMemory(pageStart + (Processor.pageSize * translationEntry.ppn), data, dataStart, length);
 					translationEntry.used = true;
 					return length;
 				} else if (!translationEntry.readOnly && accessType == AccessType.WRITE) {//FIXME: If this last part necessary?
-					System.arraycopy(data, dataStart, Machine.processor().getMemory(), pageStart + (Processor.pageSize * translationEntry.ppn), length);
+					Machine.processor().writeMemory(pageStart + (Processor.pageSize * translationEntry.ppn), data, dataStart, length);
 					translationEntry.used = translationEntry.dirty = true;
 					return length;
 				}
@@ -416,6 +568,9 @@ public class UserProcess {
 
 		loadArguments(entryOffset, stringOffset, argv);
 
+		if (Machine.profiler() != null)
+			Machine.profiler().addProcess(PID, name, coff);
+
 		return true;
 	}
 
@@ -1,6 +1,5 @@
 package nachos.vm;
 
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.LinkedList;
@@ -63,9 +62,18 @@ public class VMKernel extends UserKernel {
 		while (pinnedCount == coremap.length) allPinned.sleep();
 
 		/*
-		 * We only need to flush before we start the search.
+		 * We only need to flush before we start the search. On a
+		 * multiprocessor, the other processors must be stopped until the
+		 * victim is out of their TLBs too.
 		 */
-		propagateAndFlushTLB(false);
+		boolean multiprocessor = Machine.numProcessors() > 1;
+		boolean intStatus = false;
+		if (multiprocessor) {
+			intStatus = Machine.interrupt().disable();
+			KThread.stopProcessors();
+		}
+		for (int cpu = 0; cpu < Machine.numProcessors(); cpu++)
+			propagateAndFlushTLB(Machine.processor(cpu), false);
 		
 		// When we get here, there MUST be a non-pinned page to find
 		while (true) {
@@ -99,7 +107,10 @@ public class VMKernel extends UserKernel {
 		me.pinned = true;
 
 		//对TLB更新
-		invalidateTLBEntry(clockHand);
+		for (int cpu = 0; cpu < Machine.numProcessors(); cpu++)
+			invalidateTLBEntry(Machine.processor(cpu), clockHand);
+		if (multiprocessor)
+			Machine.interrupt().restore(intStatus);
 
 		//从页表中删除映射
 		MemoryEntry me1 = null;
@@ -128,7 +139,7 @@ public class VMKernel extends UserKernel {
 
 		// 给交换页面清零
 		int pageBeginAddress = Processor.makeAddress(page.translationEntry.ppn, 0);
-		Arrays.fill(Machine.processor().getMemory(), pageBeginAddress, pageBeginAddress + Processor.pageSize, (byte) 0);
+		Machine.processor().zeroMemory(pageBeginAddress, Processor.pageSize);
 
 		
 		page.translationEntry.vpn = vpn;
@@ -241,9 +252,9 @@ public class VMKernel extends UserKernel {
   		<p>
       必须在禁用中断的情况下调用。
 	 */
-	void propagateAndFlushTLB(boolean flush) {
-		for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
-			TranslationEntry te = Machine.processor().readTLBEntry(i);
+	void propagateAndFlushTLB(Processor processor, boolean flush) {
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			TranslationEntry te = processor.readTLBEntry(i);
 
 			if (te.valid) {
 				TranslationEntry translationEntry = coremap[te.ppn].translationEntry;
@@ -256,7 +267,7 @@ public class VMKernel extends UserKernel {
 
 			if (flush) {
 				te.valid = false;
-				Machine.processor().writeTLBEntry(i, te);
+				processor.writeTLBEntry(i, te);
 			}
 		}
 	}
@@ -264,12 +275,12 @@ public class VMKernel extends UserKernel {
 	/**
 	 * 为给定的ppn设置TLB条目的无效位
 	 */
-	void invalidateTLBEntry(int ppn) {
-		for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
-			TranslationEntry te = Machine.processor().readTLBEntry(i);
+	void invalidateTLBEntry(Processor processor, int ppn) {
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			TranslationEntry te = processor.readTLBEntry(i);
 			if (te.valid && te.ppn == ppn) {
 				te.valid = false;
-				Machine.processor().writeTLBEntry(i, te);
+				processor.writeTLBEntry(i, te);
 				break;
 			}
 		}
@@ -383,10 +394,11 @@ public class VMKernel extends UserKernel {
 
 				if (swapEntry != null) {
 					// 写物理页面
+					byte[] page = new byte[Processor.pageSize];
+					Machine.processor().readMemory(me.translationEntry.ppn * Processor.pageSize,
+							page, 0, Processor.pageSize);
 					Lib.assertTrue(swapFile.write(swapEntry.swapPageNumber * Processor.pageSize,
-							Machine.processor().getMemory(),
-							me.translationEntry.ppn * Processor.pageSize,
-							Processor.pageSize) == Processor.pageSize);
+							page, 0, Processor.pageSize) == Processor.pageSize);
 				}
 			}
 		}
@@ -404,10 +416,11 @@ public class VMKernel extends UserKernel {
 			
 			if (swapEntry != null) {
 				//读物理页
+				byte[] page = new byte[Processor.pageSize];
 				Lib.assertTrue(swapFile.read(swapEntry.swapPageNumber * Processor.pageSize,
-						Machine.processor().getMemory(),
-						ppn * Processor.pageSize,
-						Processor.pageSize) == Processor.pageSize);
+						page, 0, Processor.pageSize) == Processor.pageSize);
+				Machine.processor().writeMemory(ppn * Processor.pageSize,
+						page, 0, Processor.pageSize);
 
 				
 				coremap[ppn].translationEntry.readOnly = swapEntry.readOnly;
@@ -1,5 +1,8 @@
 package nachos.vm;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Random;
@@ -33,7 +36,7 @@ public class VMProcess extends UserProcess {
 	@Override
 	public void saveState() {
 		//Propagate the effect of the memory accesses
-		kernel.propagateAndFlushTLB(true);
+		kernel.propagateAndFlushTLB(Machine.processor(), true);
 	}
 
 	/**
@@ -43,6 +46,49 @@ public class VMProcess extends UserProcess {
 	@Override
 	public void restoreState() {}
 
+	/**
+	 * Nothing is demand-paged in before the process starts, so there is no
+	 * page table, core map or swap state to save. Only the headers of the
+	 * executable are saved, so that its pages can be thunked again on restore
+	 * without loading it.
+	 */
+	@Override
+	protected void writeSections(DataOutputStream out) throws IOException {
+		coff.writeSnapshot(out);
+	}
+
+	/**
+	 * Reopen the executable named in the snapshot with the saved headers, and
+	 * thunk its sections, the stack and the arguments as <tt>load()</tt> did.
+	 * Only opening the executable takes simulated time; reading its headers
+	 * again would take a disk access for the file header and one for each
+	 * section.
+	 */
+	@Override
+	protected boolean readSections(DataInputStream in, String name, String[] args) throws IOException {
+		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+		if (executable == null)
+			return false;
+
+		try {
+			coff = new Coff(executable, in);
+		} catch (IOException e) {
+			executable.close();
+			throw e;
+		}
+
+		loadSections();
+
+		byte[][] argv = new byte[args.length][];
+		for (int i = 0; i < args.length; i++)
+			argv[i] = args[i].getBytes();
+
+		int entryOffset = (numPages - 1) * pageSize;
+		loadArguments(entryOffset, entryOffset + args.length * 4, argv);
+
+		return true;
+	}
+
 	/**
 	 * Initializes page tables for this process so that the executable can be
 	 * demand-paged.
@@ -147,6 +193,8 @@ public class VMProcess extends UserProcess {
 			//如果我们尚未将其写入TLB，请使用随机替换政策
 			if (unwritten) {
 				int randomIndex = generator.nextInt(p.getTLBSize());
+				if (Machine.journal() != null)
+					randomIndex = Machine.journal().input(Journal.kernel, randomIndex);
 				TranslationEntry oldEntry = p.readTLBEntry(randomIndex);
 				
 				//将信息传播到内存中				
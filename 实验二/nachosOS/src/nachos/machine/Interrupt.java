@@ -121,18 +121,37 @@ public final class Interrupt {
     }
 
     private void schedule(long when, String type, Runnable handler) {
+	schedule(when, new PendingInterrupt(type, handler));
+    }
+
+    private void schedule(long when, PendingInterrupt toOccur) {
 	Lib.assertTrue(when>0);
+	Lib.assertTrue(!toOccur.scheduled, "interrupt already scheduled");
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+	toOccur.time = time;
+	toOccur.id = numPendingInterruptsCreated++;
+	toOccur.scheduled = true;
 
 	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
+		  "Scheduling the " + toOccur.type +
 		  " interrupt handler at time = " + time);
 
 	pending.add(toOccur);
     }
 
+    private void cancel(PendingInterrupt toOccur) {
+	if (!toOccur.scheduled)
+	    return;
+
+	Lib.debug(dbgInt,
+		  "Cancelling the " + toOccur.type +
+		  " interrupt handler at time = " + toOccur.time);
+
+	pending.remove(toOccur);
+	toOccur.scheduled = false;
+    }
+
     private void tick(boolean inKernelMode) {
 	Stats stats = privilege.stats;
 
@@ -173,6 +192,7 @@ public final class Interrupt {
 	       ((PendingInterrupt) pending.first()).time <= time) {
 	    PendingInterrupt next = (PendingInterrupt) pending.first();
 	    pending.remove(next);
+	    next.scheduled = false;
 
 	    Lib.assertTrue(next.time <= time);
 
@@ -201,12 +221,17 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
+    /**
+     * An interrupt that a device can schedule. A device that schedules the
+     * same interrupt over and over should create it once, with
+     * <tt>Privilege.InterruptPrivilege.createInterrupt()</tt>, and schedule
+     * it again each time it occurs, or cancel it and schedule it again to
+     * move it to another time.
+     */
+    public final class PendingInterrupt implements Comparable {
+	PendingInterrupt(String type, Runnable handler) {
 	    this.type = type;
 	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
 	}
 
 	public int compareTo(Object o) {
@@ -230,6 +255,7 @@ public final class Interrupt {
 	Runnable handler;
 
 	private long id;
+	private boolean scheduled = false;
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -246,6 +272,18 @@ public final class Interrupt {
 	    Interrupt.this.schedule(when, type, handler);
 	}
 
+	public PendingInterrupt createInterrupt(String type, Runnable handler) {
+	    return new PendingInterrupt(type, handler);
+	}
+
+	public void schedule(long when, PendingInterrupt toOccur) {
+	    Interrupt.this.schedule(when, toOccur);
+	}
+
+	public void cancel(PendingInterrupt toOccur) {
+	    Interrupt.this.cancel(toOccur);
+	}
+
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
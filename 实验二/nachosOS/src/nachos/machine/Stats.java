@@ -29,6 +29,9 @@ public final class Stats {
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	if (numThreadsReused > 0)
+	    System.out.println("Threads: created " + numThreadsCreated
+			       + ", reused " + numThreadsReused);
     }
 
     /**
@@ -61,6 +64,13 @@ public final class Stats {
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /** The total number of Java threads created to run TCBs. */
+    public int numThreadsCreated = 0;
+    /**
+     * The total number of TCBs started on a pooled Java thread instead of a
+     * new one (see <tt>TCB.poolSize</tt>).
+     */
+    public int numThreadsReused = 0;
 
     /**
      * The amount to advance simulated time after each user instructions is
@@ -5,7 +5,10 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
+import java.util.LinkedList;
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -17,6 +20,17 @@ import java.security.PrivilegedAction;
  * 每个TCB控制一个基础JVM线程对象。
  *
  * <p>
+ * If <tt>TCB.virtualThreads</tt> is set, the JVM threads are virtual threads,
+ * which cost far less than platform threads to create and to switch between,
+ * so many more TCBs can exist at once. Virtual threads need a JDK that has
+ * them (21 or later).
+ *
+ * <p>
+ * If <tt>TCB.poolSize</tt> is greater than zero, the Java thread of a
+ * destroyed TCB is not thrown away, but parked in a pool of up to that many
+ * threads, and the next TCB to start runs on it instead of a new thread.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -43,6 +57,26 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	poolSize = Config.getInteger("TCB.poolSize", 0);
+	Lib.assertTrue(poolSize >= 0, "bad value for TCB.poolSize");
+
+	if (Config.getBoolean("TCB.virtualThreads", false)) {
+	    /* Look up Thread.ofVirtual().unstarted() by reflection, so that
+	     * Nachos still builds and runs on a JDK without virtual threads.
+	     */
+	    try {
+		virtualThreadBuilder =
+		    Thread.class.getMethod("ofVirtual").invoke(null);
+		newVirtualThread =
+		    Class.forName("java.lang.Thread$Builder")
+		    .getMethod("unstarted", new Class[] { Runnable.class });
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("TCB.virtualThreads needs a JDK with " +
+				     "virtual threads");
+	    }
+	}
     }
     
     /**
@@ -69,7 +103,8 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() <
+		       (newVirtualThread != null ? maxVirtualThreads : maxThreads));
 
 	isFirstTCB = (currentTCB == null);
 
@@ -88,18 +123,42 @@ public final class TCB {
 
 	this.target = target;
 
-	if (!isFirstTCB) {
+	if (!isFirstTCB && !pool.isEmpty()) {
+	    /* A Java thread is waiting in the pool, so hand this TCB to it
+	     * instead of making a new one. It wakes us up from threadroot()
+	     * just like a new thread would.
+	     */
+	    carrier = pool.removeLast();
+	    javaThread = carrier.thread;
+	    privilege.stats.numThreadsReused++;
+
+	    currentTCB.running = false;
+
+	    carrier.start(this);
+	    currentTCB.waitForInterrupt();
+	}
+	else if (!isFirstTCB) {
 	    /* If this is not the first TCB, we have to make a new Java thread
 	     * to run it. Creating Java threads is a privileged operation.
 	     */
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
+	    if (poolSize > 0) {
+		carrier = new Carrier(this);
+		tcbTarget = carrier;
+	    }
+	    else {
+		tcbTarget = new Runnable() {
+			public void run() { threadroot(); }
+		    };
+	    }
 
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() { javaThread = newThread(tcbTarget); }
 		});
 
+	    if (carrier != null)
+		carrier.thread = javaThread;
+	    privilege.stats.numThreadsCreated++;
+
 	    /* The Java thread hasn't yet started, but we need to get it
 	     * blocking in yield(). We do this by temporarily turning off the
 	     * current TCB, starting the new Java thread, and waiting for it
@@ -210,6 +269,20 @@ public final class TCB {
 		Thread.currentThread() == currentTCB.javaThread);
     }
 
+    private static Thread newThread(Runnable target) {
+	if (newVirtualThread == null)
+	    return new Thread(target);
+
+	try {
+	    return (Thread) newVirtualThread.invoke(virtualThreadBuilder,
+						    new Object[] { target });
+	}
+	catch (Exception e) {
+	    Lib.assertNotReached("could not create a virtual thread");
+	    return null;
+	}
+    }
+
     private void threadroot() {
 	// this should be running the current thread
 	Lib.assertTrue(javaThread == Thread.currentThread());
@@ -275,6 +348,15 @@ public final class TCB {
 	waitForInterrupt();
 	
 	if (done) {
+	    /* Return the Java thread to the pool while the destroying TCB is
+	     * still waiting for us, so that only one thread uses the pool at a
+	     * time.
+	     */
+	    if (carrier != null && pool.size() < poolSize) {
+		pool.add(carrier);
+		carrier.pooled = true;
+	    }
+
 	    currentTCB.interrupt();
 	    throw new ThreadDeath();
 	}
@@ -283,29 +365,34 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
+     * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
      * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
      * TCB needs to go to wait for its turn to run. This includes the ping-pong
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
-	}
+    private void waitForInterrupt() {
+	while (!running)
+	    LockSupport.park(this);
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
+     * and unparking the Java thread bound to it. Used in the ping-pong process
+     * of starting and destroying TCBs, as well as in context switching to this
      * TCB.
+     *
+     * <p>
+     * The flag is the baton passed from one TCB to the next; the Java thread
+     * that holds it runs, and every other one is parked. A thread unparked
+     * before it parks does not block, so the wakeup cannot be lost, and no
+     * monitor has to be handed back and forth. Parking also lets a virtual
+     * thread give up its carrier thread while it waits.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
 	running = true;
-	notify();
+	LockSupport.unpark(javaThread);
     }
 
     private void associateThread(KThread thread) {
@@ -335,6 +422,12 @@ public final class TCB {
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The maximum number of started, non-destroyed TCB's when they run on
+     * virtual threads.
+     */
+    public static final int maxVirtualThreads = 100000;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -367,6 +460,13 @@ public final class TCB {
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
 
+    /**
+     * A <tt>Thread.Builder</tt> for virtual threads, and its
+     * <tt>unstarted()</tt> method, if <tt>TCB.virtualThreads</tt> is set.
+     */
+    private static Object virtualThreadBuilder = null;
+    private static Method newVirtualThread = null;
+
     /**
      * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
      * started in <tt>Machine.main(String[])</tt>. Initialized by
@@ -391,7 +491,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -404,6 +504,55 @@ public final class TCB {
     private boolean associated = false;
     private Runnable target;
     private Runnable tcbTarget;
+    private Carrier carrier = null;
+
+    /** Java threads whose TCBs were destroyed, waiting to run new ones. */
+    private static LinkedList<Carrier> pool = new LinkedList<Carrier>();
+    private static int poolSize;
+
+    /**
+     * The runnable of a Java thread that can run one TCB after another. When
+     * its TCB is destroyed and it was returned to the pool, it parks until
+     * <tt>start()</tt> gives it another TCB.
+     */
+    private static class Carrier implements Runnable {
+	Carrier(TCB tcb) {
+	    this.tcb = tcb;
+	}
+
+	void start(TCB tcb) {
+	    Lib.assertTrue(pooled);
+
+	    next = tcb;
+	    LockSupport.unpark(thread);
+	}
+
+	public void run() {
+	    while (true) {
+		try {
+		    tcb.threadroot();
+		}
+		catch (ThreadDeath e) {
+		    // destroyed before it ever ran
+		}
+
+		if (!pooled)
+		    return;
+
+		while (next == null)
+		    LockSupport.park(this);
+
+		tcb = next;
+		next = null;
+		pooled = false;
+	    }
+	}
+
+	Thread thread;
+	private TCB tcb;
+	private boolean pooled = false;
+	private volatile TCB next = null;
+    }
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
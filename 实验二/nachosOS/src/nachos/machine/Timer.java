@@ -16,6 +16,11 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * A kernel can program an extra interrupt for an exact time with
+ * <tt>setDeadline()</tt>, or make the timer tickless with
+ * <tt>setTickless()</tt> and program each interrupt that way.
  */
 public final class Timer {
     /**
@@ -30,7 +35,10 @@ public final class Timer {
 	this.privilege = privilege;
 	
 	timerInterrupt = new Runnable() {
-		public void run() { timerInterrupt(); }
+		public void run() {
+		    if (!tickless)
+			timerInterrupt();
+		}
 	    };
 	
 	autoGraderInterrupt = new Runnable() {
@@ -40,6 +48,14 @@ public final class Timer {
 		}
 	    };
 
+	deadlineInterrupt =
+	    privilege.interrupt.createInterrupt("timer", new Runnable() {
+		    public void run() {
+			deadline = -1;
+			deliverInterrupt();
+		    }
+		});
+
 	scheduleInterrupt();
     }
 
@@ -53,6 +69,43 @@ public final class Timer {
 	this.handler = handler;
     }
 
+    /**
+     * Stop the periodic timer interrupt. From then on, the timer only
+     * interrupts when the kernel programs it with <tt>setDeadline()</tt>, so
+     * a kernel with nothing to preempt and no one to wake up is not
+     * interrupted at all.
+     */
+    public void setTickless() {
+	tickless = true;
+    }
+
+    /**
+     * Program the timer to interrupt at the specified time, replacing any
+     * deadline programmed before. Unless the timer is tickless, the periodic
+     * interrupts go on as well.
+     *
+     * @param	time	the time of the next timer interrupt. If this time has
+     *			already passed, the timer interrupts on the next tick.
+     */
+    public void setDeadline(long time) {
+	if (time == deadline)
+	    return;
+
+	deadline = time;
+
+	privilege.interrupt.cancel(deadlineInterrupt);
+	privilege.interrupt.schedule(Math.max(time - getTime(), 1),
+				     deadlineInterrupt);
+    }
+
+    /**
+     * Cancel the deadline programmed with <tt>setDeadline()</tt>, if any.
+     */
+    public void cancelDeadline() {
+	deadline = -1;
+	privilege.interrupt.cancel(deadlineInterrupt);
+    }
+
     /**
      * Get the current time.
      *
@@ -63,7 +116,12 @@ public final class Timer {
     }
 
     private void timerInterrupt() {
-	scheduleInterrupt();
+	if (!tickless)
+	    scheduleInterrupt();
+	deliverInterrupt();
+    }
+
+    private void deliverInterrupt() {
 	scheduleAutoGraderInterrupt();
 
 	lastTimerInterrupt = getTime();
@@ -86,6 +144,10 @@ public final class Timer {
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
     private Runnable autoGraderInterrupt;
+    private Interrupt.PendingInterrupt deadlineInterrupt;
+
+    private boolean tickless = false;
+    private long deadline = -1;
 
     private Privilege privilege;
     private Runnable handler = null;
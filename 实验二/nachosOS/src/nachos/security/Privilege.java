@@ -150,6 +150,38 @@ public abstract class Privilege {
 	 * @param	handler	the interrupt handler to call.
 	 */
 	public void schedule(long when, String type, Runnable handler);
+
+	/**
+	 * Create an interrupt that can be scheduled again each time it occurs,
+	 * without allocating anything. A device that keeps rescheduling the
+	 * same interrupt should use one of these.
+	 *
+	 * @param	type	a name for the type of interrupt.
+	 * @param	handler	the interrupt handler to call.
+	 * @return	the interrupt, not yet scheduled.
+	 */
+	public Interrupt.PendingInterrupt createInterrupt(String type,
+							  Runnable handler);
+
+	/**
+	 * Schedule an interrupt created by <tt>createInterrupt()</tt> to occur
+	 * at some time in the future. The interrupt must not already be
+	 * pending.
+	 *
+	 * @param	when	the number of ticks until the interrupt should
+	 *			occur.
+	 * @param	toOccur	the interrupt to schedule.
+	 */
+	public void schedule(long when, Interrupt.PendingInterrupt toOccur);
+
+	/**
+	 * Take an interrupt created by <tt>createInterrupt()</tt> off the list
+	 * of pending interrupts, so that it does not occur. Does nothing if the
+	 * interrupt is not pending.
+	 *
+	 * @param	toOccur	the interrupt to cancel.
+	 */
+	public void cancel(Interrupt.PendingInterrupt toOccur);
 	
 	/**
 	 * Advance the simulated time.
@@ -15,6 +15,11 @@ public class Alarm {
 	 *
 	 * <p>
 	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
+	 *
+	 * <p>
+	 * If <tt>ThreadedKernel.tickless</tt> is set, the timer is made tickless, and
+	 * the alarm only programs it when a thread needs to be woken up, or when
+	 * threads are waiting for the CPU and the running thread should be preempted.
 	 */
 	public Alarm() {
 		Machine.timer().setInterruptHandler(new Runnable() {
@@ -22,13 +27,18 @@ public class Alarm {
 				timerInterrupt();
 			}
 		});
+
+		tickless = Config.getBoolean("ThreadedKernel.tickless", false);
+		if (tickless)
+			Machine.timer().setTickless();
 	}
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
 	 * periodically (approximately every 500 clock ticks). Causes the current thread
 	 * to yield, forcing a context switch if there is another thread that should be
-	 * run.
+	 * run, unless the scheduler's <tt>shouldPreempt()</tt> says it should keep the
+	 * CPU.
 	 * 
 	 * Timer 每过500个clock ticks执行timerInterrupt()
 	 * 
@@ -43,21 +53,31 @@ public class Alarm {
 		boolean preState = Machine.interrupt().disable();// 关中断
 
 		Waiter waiter;
-		// 将等待队列上应该唤醒的队列加入到就绪队列
-		for (int i = 0; i < waitlist.size(); i++) {
+		// 将等待队列上应该唤醒的队列加入到就绪队列(waitlist按唤醒时间排序)
+		while (!waitlist.isEmpty()) {
 
 			waiter = waitlist.getFirst();
-			if (waiter.wakeTime <= Machine.timer().getTime()) {// 如果达到唤醒时间，将其从waitlist中移除并唤醒该线程
-				//System.out.println("唤醒线程：" + waiter.thread.getName() + ",时间为：" + Machine.timer().getTime());
-				waitlist.removeFirst();// 移除这个已到唤醒时间的线程并加入ready
-				waiter.thread.ready();// 加入ready,线程进入就绪状态
-			}
+			if (waiter.wakeTime > Machine.timer().getTime())
+				break;
+			// 如果达到唤醒时间，将其从waitlist中移除并唤醒该线程
+			//System.out.println("唤醒线程：" + waiter.thread.getName() + ",时间为：" + Machine.timer().getTime());
+			waitlist.removeFirst();// 移除这个已到唤醒时间的线程并加入ready
+			waiter.thread.ready();// 加入ready,线程进入就绪状态
 		}
 
+		// the time slice, if any, is over; yield() starts a new one if needed,
+		// and a thread that is not preempted gets a new one right away
+		sliceEnd = -1;
+		boolean preempt = ThreadedKernel.scheduler.shouldPreempt();
+		if (!preempt && !startTimeSlice(KThread.currentThread()))
+			scheduleTimeSlice();
+		programTimer();
+
 		Machine.interrupt().restore(preState);// 恢复中断
 		// 1.3end
 
-		KThread.currentThread().yield();
+		if (preempt)
+			KThread.currentThread().yield();
 	}
 
 	/**
@@ -85,7 +105,12 @@ public class Alarm {
 		boolean preState = Machine.interrupt().disable();//关中断
 	    
 		Waiter waiter = new Waiter(KThread.currentThread(), wakeTime);
-		waitlist.add(waiter);//加入到等待列表waitlist
+		// 按唤醒时间插入等待列表waitlist,唤醒时间相同的按先后顺序
+		int index = waitlist.size();
+		while (index > 0 && waitlist.get(index - 1).wakeTime > wakeTime)
+			index--;
+		waitlist.add(index, waiter);
+		programTimer();
 		//System.out.println(KThread.currentThread().getName()+"线程休眠，时间为："+Machine.timer().getTime()+",应在"+wakeTime+"时间醒来。");
 		KThread.sleep();//该线程休眠！！
 		
@@ -93,6 +118,66 @@ public class Alarm {
 	    //1.3end
 	}
 
+	/**
+	 * Called by the kernel when threads other than the one about to run are
+	 * waiting for the CPU, so that the running thread is preempted within a
+	 * time slice. In tickless mode this is the only way the timer is armed
+	 * for preemption; a time slice already running is not extended.
+	 */
+	void scheduleTimeSlice() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (!tickless || sliceEnd != -1)
+			return;
+
+		sliceEnd = Machine.timer().getTime() + Stats.TimerTicks;
+		programTimer();
+	}
+
+	/**
+	 * Called by the kernel when it dispatches a thread. If the scheduler gives
+	 * the thread a time slice of its own, such as what is left of its quantum,
+	 * the timer is programmed to interrupt when the slice is over, whether or
+	 * not the timer is tickless.
+	 *
+	 * @param thread the thread that is about to run, or keeps running.
+	 * @return <tt>true</tt> if the scheduler gave the thread a time slice.
+	 */
+	boolean startTimeSlice(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long slice = ThreadedKernel.scheduler.getTimeSlice(thread);
+		if (slice == -1)
+			return false;
+
+		sliceEnd = Machine.timer().getTime() + slice;
+		programTimer();
+		return true;
+	}
+
+	/**
+	 * Program the timer for the earlier of the end of the time slice and the
+	 * first wake time on the wait list. A periodic timer wakes threads up by
+	 * itself, so it is only programmed for the end of a time slice that the
+	 * scheduler gave.
+	 */
+	private void programTimer() {
+		long deadline = sliceEnd;
+		if (tickless && !waitlist.isEmpty()) {
+			long wakeTime = waitlist.getFirst().wakeTime;
+			if (deadline == -1 || wakeTime < deadline)
+				deadline = wakeTime;
+		}
+
+		if (deadline == -1)
+			Machine.timer().cancelDeadline();
+		else
+			Machine.timer().setDeadline(deadline);
+	}
+
+	private boolean tickless;
+	private long sliceEnd = -1;
+
 // 1.3start
 	private LinkedList<Waiter> waitlist = new LinkedList();/* !!!注意new */
 
@@ -2,6 +2,9 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+
 /**
  * A KThread is a thread that can be used to execute Nachos kernel code. Nachos
  * allows multiple threads to run concurrently.
@@ -56,12 +59,13 @@ public class KThread {
 	public KThread() {
 		//1.1start
 		// 抽象类由于java派生于抽象类的对象无法实例化，在运行时很可能出现空指针异常，该语句不可缺少
-		waitJoinQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+		// join的线程把优先级捐赠给被join的线程，所以队列要允许优先级捐赠
+		waitJoinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
 		//1.1end
 		if (currentThread != null) {
 			tcb = new TCB();
 		} else {
-			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+			readyQueue = ThreadedKernel.scheduler.newReadyQueue();
 			readyQueue.acquire(this);
 
 			currentThread = this;
@@ -294,8 +298,14 @@ public class KThread {
 		Lib.assertTrue(status != statusReady);
 
 		status = statusReady;
-		if (this != idleThread)
+		if (this != idleThread) {
 			readyQueue.waitForAccess(this);
+			numReady++;
+
+			// the running thread now has to share the CPU
+			if (this != currentThread && currentThread != idleThread)
+				scheduleTimeSlice();
+		}
 
 		Machine.autoGrader().readyThread(this);
 	}
@@ -364,10 +374,26 @@ public class KThread {
 		KThread nextThread = readyQueue.nextThread();
 		if (nextThread == null)
 			nextThread = idleThread;
+		else
+			numReady--;
+
+		if (nextThread != idleThread && ThreadedKernel.alarm != null)
+			ThreadedKernel.alarm.startTimeSlice(nextThread);
+		if (numReady > 0)
+			scheduleTimeSlice();
 
 		nextThread.run();
 	}
 
+	/**
+	 * Make sure the running thread will be preempted, because other threads are
+	 * waiting for the CPU. Only matters if the timer is tickless.
+	 */
+	private static void scheduleTimeSlice() {
+		if (ThreadedKernel.alarm != null)
+			ThreadedKernel.alarm.scheduleTimeSlice();
+	}
+
 	/**
 	 * Dispatch the CPU to this thread. Save the state of the current thread, switch
 	 * to the new thread by calling <tt>TCB.contextSwitch()</tt>, and load the state
@@ -464,6 +490,10 @@ public class KThread {
 //		testJoin();
 //		new KThread(new PingTest(1)).setName("forked thread").fork();
 //		new PingTest(0).run();
+//		testYieldLatency();
+//		testLotteryDraw();
+//		testStrideShare();
+//		testMLFQ();
 		testLottery();
 
 	}
@@ -691,6 +721,208 @@ public class KThread {
 		Boat.selfTest();
 	}
 //1.6test end!
+
+	/**
+	 * Measure the cost of a context switch. Two threads yield to each other
+	 * back and forth, and the wall-clock time per switch is printed for each of
+	 * several runs; the first runs warm up the JIT, so the later ones are the
+	 * ones to compare.
+	 */
+	public static void testYieldLatency() {
+		System.out.println("-----Now we begin to testYieldLatency()-----");
+
+		final int switches = 100000;
+
+		for (int run = 0; run < 5; run++) {
+			KThread pong = new KThread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < switches / 2; i++)
+						KThread.yield();
+				}
+			}).setName("pong");
+
+			long start = System.nanoTime();
+			pong.fork();
+			for (int i = 0; i < switches / 2; i++)
+				KThread.yield();
+			pong.join();
+			long elapsed = System.nanoTime() - start;
+
+			System.out.println("run " + run + ": " + elapsed / switches + " ns per yield()");
+		}
+	}
+
+	/**
+	 * Measure the cost of a lottery draw. Thousands of threads, holding from 1
+	 * to 10 tickets each, wait on one lottery queue; each draw takes the winner
+	 * off the queue and puts it back. The time per draw is printed for several
+	 * queue sizes, along with the largest deviation of any ticket count's share
+	 * of the wins from its share of the tickets. The scheduler must be a
+	 * <tt>LotteryScheduler</tt>.
+	 */
+	public static void testLotteryDraw() {
+		System.out.println("-----Now we begin to testLotteryDraw()-----");
+		boolean oldStatus = Machine.interrupt().disable();
+
+		LotteryScheduler scheduler = (LotteryScheduler) ThreadedKernel.scheduler;
+		final int draws = 200000;
+
+		for (int numThreads = 1000; numThreads <= 16000; numThreads *= 4) {
+			ThreadQueue queue = scheduler.newThreadQueue(false);
+			long[] tickets = new long[11];
+			long totalTickets = 0;
+
+			for (int i = 0; i < numThreads; i++) {
+				KThread thread = new KThread().setName("lottery" + i);
+				scheduler.getThreadState(thread).setPriority(i % 10 + 1);
+				tickets[i % 10 + 1] += i % 10 + 1;
+				totalTickets += i % 10 + 1;
+				queue.waitForAccess(thread);
+			}
+
+			long[] wins = new long[11];
+			long start = System.nanoTime();
+			for (int i = 0; i < draws; i++) {
+				KThread winner = queue.nextThread();
+				wins[scheduler.getThreadState(winner).getPriority()]++;
+				queue.waitForAccess(winner);
+			}
+			long elapsed = System.nanoTime() - start;
+
+			double deviation = 0;
+			for (int t = 1; t <= 10; t++)
+				deviation = Math.max(deviation,
+						Math.abs((double) wins[t] / draws - (double) tickets[t] / totalTickets));
+
+			System.out.println(numThreads + " threads: " + elapsed / draws + " ns per draw, share deviation "
+					+ Math.round(deviation * 10000) / 100.0 + "%");
+		}
+
+		Machine.interrupt().restore(oldStatus);
+	}
+
+	/**
+	 * Compare how closely a <tt>StrideScheduler</tt> and a
+	 * <tt>LotteryScheduler</tt> hold threads to their share. A thousand
+	 * threads, holding from 1 to 10 tickets each, wait on one queue of each
+	 * scheduler; each choice takes a thread off the queue and puts it back.
+	 * After every tenfold number of choices, the largest difference between
+	 * the number of times a thread was chosen and its share of the choices is
+	 * printed for both schedulers.
+	 */
+	public static void testStrideShare() {
+		System.out.println("-----Now we begin to testStrideShare()-----");
+		boolean oldStatus = Machine.interrupt().disable();
+
+		final int numThreads = 1000;
+		final int maxChoices = 1000000;
+
+		StrideScheduler stride = new StrideScheduler();
+		LotteryScheduler lottery = new LotteryScheduler();
+		ThreadQueue[] queues = { stride.newThreadQueue(false), lottery.newThreadQueue(false) };
+		String[] names = { "stride", "lottery" };
+
+		for (int s = 0; s < queues.length; s++) {
+			HashMap<KThread, Integer> index = new HashMap<KThread, Integer>();
+			long totalTickets = 0;
+			for (int i = 0; i < numThreads; i++) {
+				KThread thread = new KThread().setName(names[s] + i);
+				if (s == 0)
+					stride.setPriority(thread, i % 10 + 1);
+				else
+					lottery.getThreadState(thread).setPriority(i % 10 + 1);
+				totalTickets += i % 10 + 1;
+				index.put(thread, i);
+				queues[s].waitForAccess(thread);
+			}
+
+			long[] chosen = new long[numThreads];
+			int report = 1000;
+			long start = System.nanoTime();
+			for (int choices = 1; choices <= maxChoices; choices++) {
+				KThread thread = queues[s].nextThread();
+				chosen[index.get(thread)]++;
+				queues[s].waitForAccess(thread);
+
+				if (choices == report) {
+					report *= 10;
+					double error = 0;
+					for (int i = 0; i < numThreads; i++)
+						error = Math.max(error,
+								Math.abs(chosen[i] - (double) choices * (i % 10 + 1) / totalTickets));
+					System.out.println(names[s] + ": " + choices + " choices, largest error "
+							+ Math.round(error * 100) / 100.0 + " choices");
+				}
+			}
+			long elapsed = System.nanoTime() - start;
+			System.out.println(names[s] + ": " + elapsed / maxChoices + " ns per choice");
+		}
+
+		Machine.interrupt().restore(oldStatus);
+	}
+
+	/**
+	 * Show how a <tt>MLFQScheduler</tt> treats CPU-bound and I/O-bound threads.
+	 * Four threads use all the CPU they can get, while another sleeps on the
+	 * alarm for 200 ticks, 50 times over; how late it wakes up, on average and
+	 * at most, is printed. Run it under <tt>RoundRobinScheduler</tt> too to
+	 * compare. Under <tt>MLFQScheduler</tt> the level changes of the first
+	 * CPU-bound thread are also printed: it drops a level each time it uses up
+	 * the quantum of its level, and goes back to the highest level every
+	 * <tt>MLFQScheduler.boostInterval</tt> ticks.
+	 */
+	public static void testMLFQ() {
+		System.out.println("-----Now we begin to testMLFQ()-----");
+
+		final boolean[] done = { false };
+		final MLFQScheduler mlfq = (ThreadedKernel.scheduler instanceof MLFQScheduler)
+				? (MLFQScheduler) ThreadedKernel.scheduler : null;
+		final ArrayList<String> levels = new ArrayList<String>();
+
+		KThread[] hogs = new KThread[4];
+		for (int i = 0; i < hogs.length; i++) {
+			final boolean watched = (i == 0);
+			hogs[i] = new KThread(new Runnable() {
+				public void run() {
+					int level = -1;
+					while (!done[0]) {
+						boolean intStatus = Machine.interrupt().disable();
+						if (watched && mlfq != null && mlfq.getLevel(currentThread) != level) {
+							level = mlfq.getLevel(currentThread);
+							if (levels.size() < 12)
+								levels.add("level " + level + " at tick " + Machine.timer().getTime());
+						}
+						Machine.interrupt().restore(intStatus);
+					}
+				}
+			}).setName("hog" + i);
+			hogs[i].fork();
+		}
+
+		KThread sleeper = new KThread(new Runnable() {
+			public void run() {
+				long total = 0, max = 0;
+				for (int i = 0; i < 50; i++) {
+					long start = Machine.timer().getTime();
+					ThreadedKernel.alarm.waitUntil(200);
+					long late = Machine.timer().getTime() - start - 200;
+					total += late;
+					max = Math.max(max, late);
+				}
+				System.out.println("sleeper woke up " + total / 50 + " ticks late on average, " + max
+						+ " at most");
+				done[0] = true;
+			}
+		}).setName("sleeper");
+		sleeper.fork();
+		sleeper.join();
+
+		for (int i = 0; i < hogs.length; i++)
+			hogs[i].join();
+		for (int i = 0; i < levels.size(); i++)
+			System.out.println("hog0 moved to " + levels.get(i));
+	}
+
 	private static final char dbgThread = 't';
 
 	/**
@@ -725,6 +957,8 @@ public class KThread {
 	private static int numCreated = 0;
 
 	private static ThreadQueue readyQueue = null;
+	/** The number of threads on the ready queue. */
+	private static int numReady = 0;
 	private static KThread currentThread = null;
 	private static KThread toBeDestroyed = null;
 	private static KThread idleThread = null;
@@ -64,7 +64,10 @@ public class LotteryScheduler extends PriorityScheduler {
 	}
 
 	/**
-	 * 
+	 * A lottery queue. The tickets of the waiting threads are kept in a Fenwick
+	 * tree, one slot per thread, so that adding or removing a thread, changing
+	 * its tickets, and drawing the winner all take time logarithmic in the
+	 * number of waiting threads.
 	 */
 	public class PriorityQueue extends PriorityScheduler.PriorityQueue
     {
@@ -73,57 +76,113 @@ public class LotteryScheduler extends PriorityScheduler {
         {
         	super(transferPriority);
             this.transferPriority = transferPriority;
-            waitQueue = new LinkedList<>();
             holder = null;
         }
 
         @Override
-        public ThreadState pickNextThread()
+        public KThread nextThread()
         {
-            ThreadState r = null;
-            
-            //temp : waitQueue的每一个线程的彩票总数之和
-            int temp = 0;
-            for(int i = 0; i < waitQueue.size(); ++i)
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            ThreadState r = pickNextThread();
+            //没有线程等待，holder（如果有holder的话）释放该队列
+            if(r == null)
             {
-                temp += waitQueue.get(i).effectivePriority;
+                if(holder != null)
+                    holder.release(this);
+                return null;
             }
-            
-            //彩票总数不为0
-            if(temp != 0)
+
+            r.acquire(this);
+            return r.thread;
+        }
+
+        //抽签选出下一个线程，但不把它移出队列
+        @Override
+        public ThreadState pickNextThread()
+        {
+            //彩票总数为0
+            if(totalTickets == 0)
+                return null;
+
+            //随机抽取的彩票是第ticket张(从0开始)，
+            //在树上从高位到低位找到前缀和不超过ticket的最长前缀，它后面的那个线程就是获得彩票的线程
+            long ticket = drawTicket(totalTickets);
+            int pos = 0;
+            for(int step = capacity; step > 0; step >>= 1)
             {
-                int rand = random.nextInt(temp) + 1; //随机抽取的彩票数是rand
-                temp = 0;
-                
-                /*再次对 waitQueue的每一个线程的彩票数，开始相加
-                 * 直到 rand < 不断相加的彩票总数,那么当前线程就是获得彩票的那个(即下一个要执行的)线程。
-                 */
-                for(int i = 0; i < waitQueue.size(); ++i)
+                if(tree[pos + step] <= ticket)
                 {
-                	temp += waitQueue.get(i).effectivePriority;
-                    if(rand <= temp)
-                    {
-                    	//r 就是获得彩票的那个ThreadState,即下一个要执行的程序。
-                        r = waitQueue.remove(i);
-                        break;
-                    }                  
+                    pos += step;
+                    ticket -= tree[pos];
                 }
             }
-          //每去掉（执行）一个线程，都要改变holder（如果有holder的话）的EffectivePriority
-            if(holder != null)
+            return slots[pos + 1];
+        }
+
+        //将线程放进一个空槽，加上它的彩票
+        protected void insert(ThreadState state)
+        {
+            if(numFree == 0)
+                grow();
+
+            state.slot = freeSlots[--numFree];
+            slots[state.slot] = state;
+            adjust(state.slot, state.effectivePriority);
+        }
+
+        //将线程和它的彩票从槽中移走
+        protected void delete(ThreadState state)
+        {
+            adjust(state.slot, -state.effectivePriority);
+            slots[state.slot] = null;
+            freeSlots[numFree++] = state.slot;
+            state.slot = 0;
+        }
+
+        //第slot个槽的彩票数增加delta
+        protected void adjust(int slot, long delta)
+        {
+            totalTickets += delta;
+            for(int i = slot; i <= capacity; i += i & -i)
+                tree[i] += delta;
+        }
+
+        //槽用完时容量加倍，重新建树
+        private void grow()
+        {
+            int newCapacity = (capacity == 0) ? 8 : capacity * 2;
+
+            ThreadState[] newSlots = new ThreadState[newCapacity + 1];
+            System.arraycopy(slots, 0, newSlots, 0, capacity + 1);
+            slots = newSlots;
+
+            tree = new long[newCapacity + 1];
+            for(int i = 1; i <= newCapacity; ++i)
             {
-                holder.holdingQueues.remove(this);
-                holder.changeEffectivePriority();
-                holder = r;
+                if(slots[i] != null)
+                    tree[i] += slots[i].effectivePriority;
+                int parent = i + (i & -i);
+                if(parent <= newCapacity)
+                    tree[parent] += tree[i];
             }
-          //r 就是获得彩票的那个ThreadState,即下一个要执行的。
-            if(r != null)
-                r.waitQueue = null;
-            
-            return r;
+
+            //新槽按从小到大的顺序取用
+            freeSlots = new int[newCapacity];
+            for(int i = newCapacity; i > capacity; --i)
+                freeSlots[numFree++] = i;
+
+            capacity = newCapacity;
         }
 
-        protected LinkedList<ThreadState> waitQueue;
+        //tree[i]是第i - (i & -i) + 1到第i个槽的彩票数之和，slots[i]是第i个槽中的线程
+        protected long[] tree = new long[1];
+        protected ThreadState[] slots = new ThreadState[1];
+        protected int capacity = 0;
+        protected int[] freeSlots = new int[0];
+        protected int numFree = 0;
+        //waitQueue的每一个线程的彩票总数之和
+        protected long totalTickets = 0;
         protected LotteryScheduler.ThreadState holder;
 }
 
@@ -145,12 +204,12 @@ public class ThreadState extends PriorityScheduler.ThreadState
             boolean oldStatus = Machine.interrupt().disable();
             
             this.waitQueue = p;
-            p.waitQueue.add(this);
+            p.insert(this);
             
             //每增加waitForAccess一个线程，
-            //都要改变holder（如果有holder的话）的EffectivePriority
+            //holder（如果有holder的话）的EffectivePriority都要加上它的彩票数
             if(p.holder != null)
-                p.holder.changeEffectivePriority();
+                p.holder.transferTickets(effectivePriority);
             
             Machine.interrupt().restore(oldStatus);
         }
@@ -160,42 +219,70 @@ public class ThreadState extends PriorityScheduler.ThreadState
         {
             boolean oldStatus = Machine.interrupt().disable();
             PriorityQueue p = (PriorityQueue)wait;
+
+            //this线程获得了彩票，离开队列，原来的holder也不再持有这个队列
+            if(waitQueue == p)
+            {
+                p.delete(this);
+                waitQueue = null;
+                if(p.holder != null)
+                    p.holder.transferTickets(-effectivePriority);
+            }
+            if(p.holder != null && p.holder != this)
+                p.holder.release(p);
+
             if(p.transferPriority)
             {
                 holdingQueues.add(p);
                 p.holder = this;
+                transferTickets(p.totalTickets);
             }
             Machine.interrupt().restore(oldStatus);
         }
 
-        protected void changeEffectivePriority()
+        //不再持有p，失去p中所有线程转移来的彩票
+        protected void release(PriorityQueue p)
+        {
+            p.holder = null;
+            if(holdingQueues.remove(p))
+                transferTickets(-p.totalTickets);
+        }
+
+        //setPriority()后重新计算有效彩票数；
+        //父类构造函数调用setPriority()时holdingQueues还没有创建
+        @Override
+        protected void updateEffectivePriority()
         {
-            effectivePriority = priority;
             if(holdingQueues == null)
-            {
-                System.out.println();
-            }
-            
-            /* this线程 的 有效彩票数 = 自身的彩票数priority + 等待队列里所有线程的彩票数目
-             * 一开始是effectivePriority = priority
-             * 然后遍历holdingQueues的 几个PriorityQueue，
-             * 对于每一个PriorityQueue，遍历其中的线程，
-             * 不断加遍历的线程的彩票数，
-             * 最终遍历完holdingQueues，所加得的effectivePriority就是 this线程 的 有效彩票数
+                return;
+
+            /* this线程 的 有效彩票数 = 自身的彩票数priority + 持有的所有队列里所有线程的彩票数目
+             * 每个队列的彩票总数都记在totalTickets里，不用再遍历队列里的线程
              * */
+            long tickets = priority;
             for(PriorityQueue p : holdingQueues)
+                tickets += p.totalTickets;
+            transferTickets(tickets - effectivePriority);
+        }
+
+        /* this线程 的 有效彩票数增加delta（可以为负），
+         * 如若waitQueue != null，那么this线程在waitQueue中的槽和waitQueue的彩票总数也要增加delta，
+         * waitQueue.holder（如果有）的有效彩票数跟着增加delta，如此沿持有者链传递下去
+         * */
+        protected void transferTickets(long delta)
+        {
+            ThreadState state = this;
+            while(state != null && delta != 0)
             {
-                for(int i = 0; i < p.waitQueue.size(); ++i)
-                {
-                    Lib.assertTrue(effectivePriority + p.waitQueue.get(i).effectivePriority < priorityMaximum);
-                    effectivePriority += p.waitQueue.get(i).effectivePriority;
-                }
+                Lib.assertTrue(state.effectivePriority + delta < priorityMaximum);
+                state.effectivePriority += delta;
+
+                PriorityQueue p = state.waitQueue;
+                if(p == null)
+                    break;
+                p.adjust(state.slot, delta);
+                state = p.holder;
             }
-            //this线程 的 有效彩票数effectivePriority修改了，
-            //如若waitQueue != null && waitQueue.holder != null，
-            //那么waitQueue.holder也要跟着修改EffectivePriority
-            if(waitQueue != null && waitQueue.holder != null)
-                waitQueue.holder.changeEffectivePriority();
         }
         
         public int getE() {
@@ -204,8 +291,18 @@ public class ThreadState extends PriorityScheduler.ThreadState
 
         protected LinkedList<PriorityQueue> holdingQueues;
         protected PriorityQueue waitQueue;
+        //在waitQueue中所在的槽
+        protected int slot = 0;
     }
 
+	//在0到total - 1中随机抽一张彩票
+	private static long drawTicket(long total) {
+		if (total <= Integer.MAX_VALUE)
+			return random.nextInt((int) total);
+		else
+			return (random.nextLong() & Long.MAX_VALUE) % total;
+	}
+
 	
 	/**
 	 * The default priority for a new thread. Do not change this value.
@@ -0,0 +1,360 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+import java.util.Iterator;
+
+/**
+ * A multi-level feedback queue scheduler. Threads are kept on several levels,
+ * and a thread is always chosen from the highest level that has any, in FIFO
+ * order within the level.
+ *
+ * <p>
+ * A new thread starts on the highest level. Each level has a quantum, the
+ * number of ticks a thread may run before it moves down one level; the time
+ * is added up over all the runs of the thread on that level, so a thread
+ * cannot stay up by yielding just before its quantum runs out. A thread that
+ * blocks early, waiting for the console, the network or the alarm, uses
+ * little of its quantum and so stays on a high level, ahead of the threads
+ * that use all the CPU they can get.
+ *
+ * <p>
+ * The timer is programmed to interrupt when the running thread uses up its
+ * quantum, so the quanta hold even when they are shorter than the period of
+ * the timer. A timer interrupt only preempts the current thread when it has
+ * used up its quantum, or when a thread on a higher level is ready to run.
+ * Every <tt>MLFQScheduler.boostInterval</tt> ticks all threads move back to
+ * the highest level, so that threads on the lower levels do not starve.
+ *
+ * <p>
+ * The quantum of each level, from the highest, is given by
+ * <tt>MLFQScheduler.quanta</tt>, a list of tick counts separated by commas.
+ * The last level has no level below it, and threads on it take turns, each
+ * running for a quantum.
+ *
+ * <p>
+ * A multi-level feedback queue scheduler does not transfer priority.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new multi-level feedback queue scheduler.
+     */
+    public MLFQScheduler() {
+	String[] values =
+	    Config.getString("MLFQScheduler.quanta", "100,200,400,800").split(",");
+	Lib.assertTrue(values.length <= maxLevels,
+		       "bad value for MLFQScheduler.quanta");
+
+	quanta = new int[values.length];
+	try {
+	    for (int i=0; i<values.length; i++)
+		quanta[i] = Integer.parseInt(values[i].trim());
+	}
+	catch (NumberFormatException e) {
+	    Lib.assertNotReached("bad value for MLFQScheduler.quanta");
+	}
+	for (int i=0; i<quanta.length; i++)
+	    Lib.assertTrue(quanta[i] > 0, "bad value for MLFQScheduler.quanta");
+
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 5000);
+	Lib.assertTrue(boostInterval > 0,
+		       "bad value for MLFQScheduler.boostInterval");
+    }
+
+    /**
+     * Allocate a new multi-level queue.
+     *
+     * @param	transferPriority	ignored. Multi-level feedback queue
+     *					schedulers do not transfer priority.
+     * @return	a new multi-level queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MultiLevelQueue();
+    }
+
+    /**
+     * Allocate the queue of threads that are ready to run, which
+     * <tt>shouldPreempt()</tt> checks for threads on higher levels.
+     *
+     * @return	a new multi-level queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	Lib.assertTrue(readyQueue == null);
+
+	readyQueue = new MultiLevelQueue();
+	return readyQueue;
+    }
+
+    /**
+     * Preempt the current thread if it has used up its quantum, which also
+     * moves it down a level, or if a thread on a higher level is ready.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean shouldPreempt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(KThread.currentThread());
+	if (state.charge())
+	    return true;
+
+	return readyQueue != null && readyQueue.getTopLevel() < state.getLevel();
+    }
+
+    /**
+     * Return what is left of the quantum of the specified thread at its level,
+     * so that the timer interrupts, and the thread moves down a level, as soon
+     * as the quantum is used up.
+     *
+     * @param	thread	the thread that is about to run, or keeps running.
+     * @return	the number of ticks left in its quantum.
+     */
+    public long getTimeSlice(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).getRemaining();
+    }
+
+    /**
+     * Return the level of the specified thread, 0 being the highest.
+     *
+     * @param	thread	the thread whose level to return.
+     * @return	the level of the thread.
+     */
+    public int getLevel(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).getLevel();
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Start a new boost period if the last one is over. Threads and queues
+     * notice the boost the next time they are looked at.
+     */
+    private void checkBoost() {
+	long time = Machine.timer().getTime();
+	if (time >= nextBoost) {
+	    numBoosts++;
+	    nextBoost = time + boostInterval;
+	}
+    }
+
+    private class MultiLevelQueue extends ThreadQueue {
+	MultiLevelQueue() {
+	    levels = new LinkedList[quanta.length];
+	    for (int i=0; i<levels.length; i++)
+		levels[i] = new LinkedList<KThread>();
+	}
+
+	/**
+	 * Add a thread to the end of its level. If the current thread is the
+	 * one waiting, its run so far is charged to it first.
+	 *
+	 * @param	thread	the thread to append to the queue.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (thread == KThread.currentThread())
+		state.charge();
+
+	    catchUp();
+	    int level = state.getLevel();
+	    levels[level].add(thread);
+	    occupied |= 1 << level;
+	    state.waitQueue = this;
+	}
+
+	/**
+	 * Remove the first thread from the highest level that has any. The
+	 * current thread is charged for its run so far, and the thread that
+	 * is removed starts a new run.
+	 *
+	 * @return	the first thread on the highest level, or
+	 *		<tt>null</tt> if there are no threads waiting.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState current = getThreadState(KThread.currentThread());
+	    if (current.waitQueue == null)
+		current.charge();
+
+	    int level = getTopLevel();
+	    if (level == quanta.length)
+		return null;
+
+	    KThread thread = (KThread) levels[level].removeFirst();
+	    if (levels[level].isEmpty())
+		occupied &= ~(1 << level);
+
+	    ThreadState state = getThreadState(thread);
+	    state.waitQueue = null;
+	    state.runStart = Machine.timer().getTime();
+	    return thread;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+	 * threads are waiting for access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(occupied == 0);
+	}
+
+	/**
+	 * Print out the contents of the queue, level by level.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    catchUp();
+	    for (int i=0; i<levels.length; i++) {
+		System.out.print(i + ":");
+		for (Iterator j=levels[i].iterator(); j.hasNext(); )
+		    System.out.print(" " + j.next());
+		System.out.println();
+	    }
+	}
+
+	/**
+	 * Return the highest level that has any threads, or the number of
+	 * levels if there are none.
+	 */
+	int getTopLevel() {
+	    catchUp();
+
+	    if (occupied == 0)
+		return quanta.length;
+	    else
+		return Integer.numberOfTrailingZeros(occupied);
+	}
+
+	/**
+	 * After a boost, move every waiting thread up to the highest level,
+	 * keeping them in order of level.
+	 */
+	private void catchUp() {
+	    checkBoost();
+	    if (boosts == numBoosts)
+		return;
+
+	    boosts = numBoosts;
+	    for (int i=1; i<levels.length; i++) {
+		levels[0].addAll(levels[i]);
+		levels[i].clear();
+	    }
+	    occupied = levels[0].isEmpty() ? 0 : 1;
+	}
+
+	private LinkedList[] levels;
+	private int occupied = 0;
+	private long boosts = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, and how much of the
+     * quantum of that level it has used.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread. The thread starts on the highest level.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	    this.boosts = numBoosts;
+	}
+
+	/**
+	 * Return the level of the associated thread, after any boost.
+	 *
+	 * @return	the level of the associated thread.
+	 */
+	int getLevel() {
+	    if (boosts != numBoosts) {
+		boosts = numBoosts;
+		level = 0;
+		used = 0;
+	    }
+
+	    return level;
+	}
+
+	/**
+	 * Return the number of ticks left in the quantum of the associated
+	 * thread at its level, not counting its run since it was last charged
+	 * or dispatched.
+	 */
+	long getRemaining() {
+	    int level = getLevel();
+	    return quanta[level] - used;
+	}
+
+	/**
+	 * Charge the associated thread for the ticks it has run since it was
+	 * last charged or dispatched. If that uses up the quantum of its level,
+	 * move it down a level. Must only be called for the current thread
+	 * while it is not waiting on a queue.
+	 *
+	 * @return	<tt>true</tt> if the thread used up its quantum.
+	 */
+	boolean charge() {
+	    checkBoost();
+
+	    long time = Machine.timer().getTime();
+	    int level = getLevel();
+	    if (runStart != -1)
+		used += time - runStart;
+	    runStart = time;
+
+	    if (used < quanta[level])
+		return false;
+
+	    if (level < quanta.length-1)
+		this.level++;
+	    used = 0;
+	    return true;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+
+	private int level = 0;
+	private long used = 0;
+	private long runStart = -1;
+	private long boosts;
+	private MultiLevelQueue waitQueue = null;
+    }
+
+    private int[] quanta;
+    private int boostInterval;
+    private long nextBoost = 0;
+    private long numBoosts = 0;
+
+    private MultiLevelQueue readyQueue = null;
+
+    private static final int maxLevels = 32;
+}
@@ -158,8 +158,11 @@ public class PriorityScheduler extends Scheduler {
 			// implement me
 			// 1.5 start
 			ThreadState x = pickNextThread();// 下一个选择的线程
-			if (x == null)// 如果为null,则返回null
+			if (x == null) {// 如果为null,则队列头释放this队列，返回null
+				if (lockHolder != null)
+					getThreadState(lockHolder).release(this);
 				return null;
+			}
 			else {
 				KThread thread = x.thread;
 				x.acquire(this);// 将得到的线程改为this线程队列的队列头
@@ -177,34 +180,101 @@ public class PriorityScheduler extends Scheduler {
 		 */
 		// 选择下一个有效优先级最高的线程；
 		// 根据题意如果有效优先级相同，则应该选择等待时间最长的线程。
-		// 对于优先级相同的线程只要优先选择该链表前面的线程即可解决这个问题
+		// 每个优先级各有一个先进先出的桶，occupied的第i位表示第i个桶非空，
+		// 所以最高的非空桶的队首就是要选的线程，不必遍历整个队列
 		protected ThreadState pickNextThread() {
 			// implement me
 			// 1.5 start
-			Iterator i = waitList.iterator();
-			KThread nextthread;
-			if (i.hasNext()) {
-				nextthread = (KThread) i.next();// 取出下一个线程
-				KThread x = null;
-				while (i.hasNext()) {// 比较线程的有效优先级，选出最大的，如果优先级相同，则选择等待时间最长的
-					x = (KThread) i.next();
-					int a = getThreadState(nextthread).getEffectivePriority();
-//					System.out.println(nextthread.getName()+"**的优先级为："+a);
-					int b = getThreadState(x).getEffectivePriority();
-//					System.out.println(x.getName()+"**的优先级为："+b);
-					if (a < b) {
-//						System.out.println(x.getName()+"的优先级高于"+nextthread.getName());
-						nextthread = x;
-						
-					}
-				}
-				return getThreadState(nextthread);
-			} else {
+			if (occupied == 0)
 				return null;
-			}
+			else
+				return heads[31 - Integer.numberOfLeadingZeros(occupied)];
 			// 1.5 end
 		}
 
+		// 将线程按它当前的有效优先级加入对应桶的队尾
+		protected void add(ThreadState state) {
+			Lib.assertTrue(state.waitQueue == null);
+
+			state.waitQueue = this;
+			state.waitSequence = numAdded++;
+			state.bucket = state.getEffectivePriority() - priorityMinimum;
+			state.prev = tails[state.bucket];
+			state.next = null;
+
+			if (state.prev == null)
+				heads[state.bucket] = state;
+			else
+				state.prev.next = state;
+			tails[state.bucket] = state;
+			occupied |= 1 << state.bucket;
+		}
+
+		// 将线程从它所在的桶中摘下
+		protected void remove(ThreadState state) {
+			Lib.assertTrue(state.waitQueue == this);
+
+			if (state.prev == null)
+				heads[state.bucket] = state.next;
+			else
+				state.prev.next = state.next;
+			if (state.next == null)
+				tails[state.bucket] = state.prev;
+			else
+				state.next.prev = state.prev;
+
+			if (heads[state.bucket] == null)
+				occupied &= ~(1 << state.bucket);
+			state.waitQueue = null;
+			state.prev = state.next = null;
+		}
+
+		// 线程的有效优先级变了，把它移到新的桶中，
+		// 并按入队序号插到合适位置，保持等待时间最长的线程在前
+		protected void update(ThreadState state) {
+			int bucket = state.getEffectivePriority() - priorityMinimum;
+			if (bucket == state.bucket)
+				return;
+
+			long sequence = state.waitSequence;
+			remove(state);
+			state.waitQueue = this;
+			state.waitSequence = sequence;
+			state.bucket = bucket;
+
+			ThreadState after = tails[bucket];
+			while (after != null && after.waitSequence > sequence)
+				after = after.prev;
+
+			state.prev = after;
+			state.next = (after == null) ? heads[bucket] : after.next;
+			if (state.prev == null)
+				heads[bucket] = state;
+			else
+				state.prev.next = state;
+			if (state.next == null)
+				tails[bucket] = state;
+			else
+				state.next.prev = state;
+			occupied |= 1 << bucket;
+		}
+
+		// 等待this队列的线程中最高的有效优先级，也就是this队列捐赠给队列头的优先级
+		protected int getDonatedPriority() {
+			if (!transferPriority || occupied == 0)
+				return priorityMinimum;
+			else
+				return 31 - Integer.numberOfLeadingZeros(occupied) + priorityMinimum;
+		}
+
+		// 接受this队列捐赠的线程，即transferPriority时的队列头
+		protected ThreadState getDonee() {
+			if (!transferPriority || lockHolder == null)
+				return null;
+			else
+				return getThreadState(lockHolder);
+		}
+
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
 			// implement me (if you want)
@@ -219,7 +289,11 @@ public class PriorityScheduler extends Scheduler {
 		public boolean transferPriority = true;
 		// 1.5 start
 		protected KThread lockHolder = null; // 队列头
-		protected LinkedList<KThread> waitList = new LinkedList<KThread>();
+		// 每个优先级一个桶，桶内按入队先后用双向链表串起来
+		protected ThreadState[] heads = new ThreadState[priorityMaximum - priorityMinimum + 1];
+		protected ThreadState[] tails = new ThreadState[priorityMaximum - priorityMinimum + 1];
+		protected int occupied = 0;
+		protected long numAdded = 0;
 		// 1.5 end
 		public boolean isTransferPriority() {
 			return transferPriority;
@@ -265,39 +339,14 @@ public class PriorityScheduler extends Scheduler {
 		 *
 		 * @return the effective priority of the associated thread.
 		 * 
-		 *  该方法通过比较this线程的acquired中所有线程的优先级，将最高优先级捐献给this线程。
-		 *  acquired为一个HashSet容器，该容器中装有所有等待该线程的队列，这些队列包括
-		 *  锁队列（如果该线程持有几把锁，那么等待该锁的线程队列便会在里面），
-		 *  waitForJoin队列（如果A线程join了该线程，则A线程会进入该线程waitForJoin队列）等， 队列里放着等待的线程
+		 *  有效优先级 = max(自身优先级, acquired中每个队列捐赠的优先级)。
+		 *  acquired为一个HashSet容器，装有this线程作为队列头、且允许优先级捐赠的队列，
+		 *  比如this线程持有的锁的等待队列。每个队列捐赠的优先级就是其中最高的等待线程的有效优先级，
+		 *  所以有效优先级不必每次重算，只在它可能改变时由updateEffectivePriority()更新。
 		 */
 		public int getEffectivePriority() {
 			// 1.5 start
-			Lib.assertTrue(Machine.interrupt().disabled());
-
-			// ThreadState 有一个PriorityQueue类型的 waitQueue, PriorityQueue 中有个LinkedList的waitList
-
-			// 该优先级线程队列存在优先级捐赠吗？？
-			if (effectivePriority == invalidPriority && !acquired.isEmpty()) {
-				effectivePriority = priority;// 先将自己的优先级赋给有效优先级
-
-				for (Iterator i = acquired.iterator(); i.hasNext();) {// 比较acquired中的所有等待队列中的所有线程的优先级
-
-					int index = 0;
-					for (Iterator j = ((PriorityQueue) i.next()).waitList.iterator(); j.hasNext();) {
-						ThreadState ts = getThreadState((KThread) j.next());
-						if (ts.priority > effectivePriority) {
-							
-							effectivePriority = ts.priority;
-						}
-					}
-				}
-				return effectivePriority;
-			} else {
-				if (effectivePriority == -2) { // 表明该优先级线程队列不存在优先级捐赠
-					return priority;
-				} else
-					return effectivePriority;// 如果该线程没有执行，那么它之前算的有效优先级不必重新再算一遍
-			}
+			return effectivePriority;
 			// 1.5 end
 		}
 
@@ -313,6 +362,9 @@ public class PriorityScheduler extends Scheduler {
 			this.priority = priority;
 
 			// implement me
+			// 1.5 start
+			updateEffectivePriority();
+			// 1.5 end
 		}
 
 		/**
@@ -329,9 +381,12 @@ public class PriorityScheduler extends Scheduler {
 		public void waitForAccess(PriorityQueue waitQueue) {
 			// implement me
 			// 1.5 start
-			waitQueue.setTransferPriority(true);
-			waitQueue.waitList.add(this.thread);// 将this调用线程加入到等待队列
-			acquired.add(waitQueue);
+			waitQueue.add(this);// 将this调用线程加入到等待队列
+
+			// this线程可能提高了队列捐赠的优先级，沿持有者链传递下去
+			ThreadState donee = waitQueue.getDonee();
+			if (donee != null)
+				donee.updateEffectivePriority();
 			// 1.5 end
 
 		}
@@ -351,13 +406,57 @@ public class PriorityScheduler extends Scheduler {
 		public void acquire(PriorityQueue waitQueue) {
 			// implement me
 			// 1.5 start
-			waitQueue.setTransferPriority(true);
-			waitQueue.waitList.remove(this.thread);// 如果这个队列中存在该线程，删除
+			if (this.waitQueue == waitQueue)// 如果这个队列中存在该线程，删除
+				waitQueue.remove(this);
+			if (waitQueue.lockHolder != null && waitQueue.lockHolder != this.thread)// 原来的队列头失去this队列的捐赠
+				getThreadState(waitQueue.lockHolder).release(waitQueue);
 			waitQueue.lockHolder = this.thread;// 对于readyQueue来讲，lockHolder为执行线程；对于Lock类的waitQueue来讲，lockHolder为持锁者；对于waitForJoin队列来讲，lockHolder为执行join方法的线程。
 			if (waitQueue.transferPriority) {// 如果存在优先级翻转，则执行下面操作
-//				this.effectivePriority = invalidPriority;
-				this.effectivePriority = invalidPriority;
 				acquired.add(waitQueue);// 将等待该线程的队列加入该线程的等待队列集合中
+				updateEffectivePriority();
+			}
+			// 1.5 end
+		}
+
+		/**
+		 * Called when the associated thread stops being the owner of
+		 * <tt>waitQueue</tt>, so that it no longer receives the priority donated
+		 * by the threads waiting on it.
+		 *
+		 * @param waitQueue the queue the associated thread no longer owns.
+		 */
+		protected void release(PriorityQueue waitQueue) {
+			// 1.5 start
+			waitQueue.lockHolder = null;
+			if (acquired.remove(waitQueue))
+				updateEffectivePriority();
+			// 1.5 end
+		}
+
+		/**
+		 * Recompute the effective priority of the associated thread, and pass
+		 * any change on to the owner of the queue it is waiting on, and so on
+		 * along the chain of owners, until a thread's effective priority does not
+		 * change.
+		 */
+		protected void updateEffectivePriority() {
+			// 1.5 start
+			ThreadState state = this;
+			while (state != null) {
+				int newPriority = state.priority;
+				for (Iterator i = state.acquired.iterator(); i.hasNext();)
+					newPriority = Math.max(newPriority, ((PriorityQueue) i.next()).getDonatedPriority());
+
+				if (newPriority == state.effectivePriority)
+					return;
+				state.effectivePriority = newPriority;
+
+				// 有效优先级变了，调整它在等待队列中的位置，再看那个队列的队列头
+				PriorityQueue queue = state.waitQueue;
+				if (queue == null)
+					return;
+				queue.update(state);
+				state = queue.getDonee();
 			}
 			// 1.5 end
 		}
@@ -368,11 +467,14 @@ public class PriorityScheduler extends Scheduler {
 		/** The priority of the associated thread. */
 		protected int priority;
 		// 1.5 start
-		protected int effectivePriority = -2;// 有效优先级初始化为-2
-		protected final int invalidPriority = -1;// 无效优先级初始化为-1
-		// 等待该线程的所有优先队列（每个优先队列里有等待线程）,包括等待锁，等待join方法的队列
+		protected int effectivePriority = -2;// 有效优先级初始化为-2，由构造函数中的setPriority()更新
+		// 等待该线程、允许优先级捐赠的所有优先队列（每个优先队列里有等待线程），比如等待锁的队列
 		protected HashSet<PriorityQueue> acquired = new HashSet<PriorityQueue>();
-		protected PriorityQueue waitQueue = new PriorityQueue(true);
+		// 正在等待的队列，以及在该队列中所在的桶、前后线程和入队序号
+		protected PriorityQueue waitQueue = null;
+		protected int bucket;
+		protected ThreadState prev, next;
+		protected long waitSequence;
 		// 1.5 end
 
 	}
@@ -52,6 +52,43 @@ public abstract class Scheduler {
      */
     public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+    /**
+     * Allocate the queue of threads that are ready to run. This is a queue
+     * that does not transfer priority, but a scheduler that needs to tell the
+     * processor wait queue apart from the others can override this.
+     *
+     * @return	a new thread queue for the threads that are ready to run.
+     */
+    public ThreadQueue newReadyQueue() {
+	return newThreadQueue(false);
+    }
+
+    /**
+     * Decide whether the timer interrupt should preempt the current thread.
+     * Must be called with interrupts disabled. By default the current thread
+     * yields at every timer interrupt.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean shouldPreempt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return true;
+    }
+
+    /**
+     * Return how many more ticks the specified thread may run before the
+     * scheduler wants it preempted, or -1 to leave that to the timer. Called
+     * with interrupts disabled when the thread is dispatched, and when a timer
+     * interrupt lets it keep the CPU. By default the timer decides.
+     *
+     * @param	thread	the thread that is about to run, or keeps running.
+     * @return	the number of ticks left in its time slice, or -1.
+     */
+    public long getTimeSlice(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return -1;
+    }
+
     /**
      * Get the priority of the specified thread. Must be called with
      * interrupts disabled.
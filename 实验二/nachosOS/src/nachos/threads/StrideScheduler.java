@@ -0,0 +1,420 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashSet;
+
+/**
+ * A scheduler that shares access among threads in proportion to their
+ * tickets, like a lottery scheduler, but deterministically.
+ *
+ * <p>
+ * Each thread holds a number of tickets, set with <tt>setPriority()</tt>, and
+ * has a stride inversely proportional to its tickets. The threads waiting on
+ * a queue are kept in a heap ordered by their pass. The thread with the lowest
+ * pass is dequeued next, and its pass then advances by its stride, so a thread
+ * with twice the tickets is chosen twice as often. Unlike a lottery, the
+ * number of times each thread is chosen never strays far from its share.
+ *
+ * <p>
+ * A thread that starts waiting on a queue starts from the pass of the thread
+ * the queue chose last, plus what was left of its own stride when it last
+ * stopped waiting, so a thread cannot save up passes while it is blocked.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler transfers tickets through
+ * locks: the owner of a queue that transfers priority holds, in addition to
+ * its own tickets, the tickets of every thread waiting on that queue.
+ */
+public class StrideScheduler extends Scheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).effectiveTickets;
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	getThreadState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = 1 << 20;
+
+    /**
+     * The stride of a thread with one ticket. A thread with <i>n</i> tickets
+     * has a stride of <tt>stride1</tt>/<i>n</i>.
+     */
+    private static final long stride1 = 1L << 30;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps its waiting threads in a binary heap
+     * ordered by pass, with ties broken in favor of the thread that has been
+     * waiting longest.
+     */
+    protected class StrideQueue extends ThreadQueue {
+	StrideQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    getThreadState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    getThreadState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (size == 0) {
+		if (owner != null)
+		    owner.release(this);
+		return null;
+	    }
+
+	    ThreadState state = heap[0];
+	    state.acquire(this);
+	    return state.thread;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<size; i++)
+		System.out.print(heap[i].thread + " ");
+	}
+
+	/**
+	 * Add a thread to the heap.
+	 */
+	void insert(ThreadState state) {
+	    if (size == heap.length) {
+		ThreadState[] newHeap = new ThreadState[size*2];
+		System.arraycopy(heap, 0, newHeap, 0, size);
+		heap = newHeap;
+	    }
+
+	    state.index = size++;
+	    heap[state.index] = state;
+	    siftUp(state.index);
+	}
+
+	/**
+	 * Remove a thread from the heap.
+	 */
+	void delete(ThreadState state) {
+	    int index = state.index;
+	    ThreadState last = heap[--size];
+	    heap[size] = null;
+	    state.index = -1;
+
+	    if (last != state) {
+		heap[index] = last;
+		last.index = index;
+		siftUp(index);
+		siftDown(last.index);
+	    }
+	}
+
+	/**
+	 * Restore the heap after the pass of a thread in it has changed.
+	 */
+	void reorder(ThreadState state) {
+	    siftUp(state.index);
+	    siftDown(state.index);
+	}
+
+	private void siftUp(int index) {
+	    ThreadState state = heap[index];
+
+	    while (index > 0) {
+		int parent = (index-1) / 2;
+		if (!state.before(heap[parent]))
+		    break;
+
+		heap[index] = heap[parent];
+		heap[index].index = index;
+		index = parent;
+	    }
+
+	    heap[index] = state;
+	    state.index = index;
+	}
+
+	private void siftDown(int index) {
+	    ThreadState state = heap[index];
+
+	    while (true) {
+		int child = index*2 + 1;
+		if (child >= size)
+		    break;
+		if (child+1 < size && heap[child+1].before(heap[child]))
+		    child++;
+		if (!heap[child].before(state))
+		    break;
+
+		heap[index] = heap[child];
+		heap[index].index = index;
+		index = child;
+	    }
+
+	    heap[index] = state;
+	    state.index = index;
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+	/** The thread holding the tickets of this queue, if any. */
+	ThreadState owner = null;
+	/** The tickets of all the threads waiting on this queue. */
+	long totalTickets = 0;
+	/** The pass of the thread this queue chose last. */
+	long pass = 0;
+
+	private ThreadState[] heap = new ThreadState[8];
+	private int size = 0;
+	private long numInserted = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its tickets, its stride and pass, the
+     * queue it is waiting on, if any, and the queues whose tickets it holds.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+
+	    tickets = effectiveTickets = priorityDefault;
+	    stride = remain = stride1 / priorityDefault;
+	}
+
+	/**
+	 * Set the number of tickets of the associated thread.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	void setTickets(int tickets) {
+	    int delta = tickets - this.tickets;
+	    this.tickets = tickets;
+
+	    transferTickets(delta);
+	}
+
+	/**
+	 * Called when the associated thread starts waiting on the specified
+	 * queue. Its pass starts from the pass of the thread the queue chose
+	 * last.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is now
+	 *				waiting on.
+	 */
+	void waitForAccess(StrideQueue waitQueue) {
+	    Lib.assertTrue(this.waitQueue == null);
+
+	    this.waitQueue = waitQueue;
+	    pass = waitQueue.pass + remain;
+	    sequence = waitQueue.numInserted++;
+	    waitQueue.insert(this);
+	    waitQueue.totalTickets += effectiveTickets;
+
+	    if (waitQueue.owner != null)
+		waitQueue.owner.transferTickets(effectiveTickets);
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <tt>waitQueue</tt>. If it was waiting on the queue, it is
+	 * charged one stride.
+	 *
+	 * @param	waitQueue	the queue that the associated thread now
+	 *				owns.
+	 */
+	void acquire(StrideQueue waitQueue) {
+	    if (this.waitQueue == waitQueue) {
+		waitQueue.delete(this);
+		waitQueue.totalTickets -= effectiveTickets;
+		waitQueue.pass = pass;
+		remain = stride;
+		this.waitQueue = null;
+
+		if (waitQueue.owner != null)
+		    waitQueue.owner.transferTickets(-effectiveTickets);
+	    }
+
+	    if (waitQueue.owner != null && waitQueue.owner != this)
+		waitQueue.owner.release(waitQueue);
+
+	    if (waitQueue.transferPriority) {
+		waitQueue.owner = this;
+		if (held.add(waitQueue))
+		    transferTickets(waitQueue.totalTickets);
+	    }
+	}
+
+	/**
+	 * Called when the associated thread no longer owns
+	 * <tt>waitQueue</tt>, and gives back the tickets of the threads
+	 * waiting on it.
+	 *
+	 * @param	waitQueue	the queue the associated thread no longer
+	 *				owns.
+	 */
+	void release(StrideQueue waitQueue) {
+	    waitQueue.owner = null;
+	    if (held.remove(waitQueue))
+		transferTickets(-waitQueue.totalTickets);
+	}
+
+	/**
+	 * Add to the effective tickets of the associated thread, and pass the
+	 * change on along the chain of owners of the queues it waits on.
+	 * Changing the tickets of a waiting thread keeps its pass the same
+	 * fraction of a stride ahead of its queue.
+	 *
+	 * @param	delta	the number of tickets to add, which may be
+	 *			negative.
+	 */
+	private void transferTickets(long delta) {
+	    for (ThreadState state = this; state != null && delta != 0; ) {
+		Lib.assertTrue(state.effectiveTickets + delta < Integer.MAX_VALUE);
+		state.effectiveTickets += delta;
+
+		long oldStride = state.stride;
+		state.stride = Math.max(stride1 / state.effectiveTickets, 1);
+
+		StrideQueue queue = state.waitQueue;
+		if (queue == null) {
+		    state.remain = state.remain * state.stride / oldStride;
+		    break;
+		}
+
+		state.pass = queue.pass +
+		    (state.pass - queue.pass) * state.stride / oldStride;
+		queue.reorder(state);
+		queue.totalTickets += delta;
+		state = queue.owner;
+	    }
+	}
+
+	/**
+	 * Test whether the associated thread should be chosen before another
+	 * thread waiting on the same queue.
+	 */
+	boolean before(ThreadState other) {
+	    if (pass != other.pass)
+		return pass < other.pass;
+	    else
+		return sequence < other.sequence;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The tickets of the associated thread. */
+	protected int tickets;
+	/** Its tickets plus the tickets transferred to it. */
+	protected int effectiveTickets;
+
+	private long stride, pass, remain;
+	private long sequence;
+	private int index = -1;
+
+	private StrideQueue waitQueue = null;
+	private HashSet<StrideQueue> held = new HashSet<StrideQueue>();
+    }
+}